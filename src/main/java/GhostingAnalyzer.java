@@ -1,15 +1,29 @@
+import analyzer.CoPresenceAnalyzer;
 import analyzer.ConnectionParser;
 import analyzer.GhostingIncident;
 import config.GAConfig;
+import store.IncidentStore;
+import format.CdHashFormat;
+import format.NamehackFormat;
+import user.GroupOrder;
+import user.HubDetector;
 import user.RecordBuildingException;
 import user.UserRecords;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 public class GhostingAnalyzer {
 
+    // Lines converted to strings at once by writeLinesToFile(..)
+    private static final int WRITE_BATCH = 4096;
+
     public static void main(String[] args) {
 
         if (args.length == 0) {
@@ -28,6 +42,7 @@ public class GhostingAnalyzer {
                 System.out.println("Arguments:");
                 System.out.println("\t\"java -jar GhostingAnalyzer-x.x.x.jar [--help|-h]\" to see this dialogue.");
                 System.out.println("\t\"java -jar GhostingAnalyzer-x.x.x.jar [options] {CD Hash log path} {Namehack log path}\" to run the application.");
+                System.out.println("\t\"java -jar GhostingAnalyzer-x.x.x.jar [-q|--history] {incident store path} {name or IP}\" to list every stored incident of a player name or IP, without parsing any logs.");
 
                 System.out.println();
 
@@ -37,18 +52,49 @@ public class GhostingAnalyzer {
                 System.out.println("\t\t1 - Check if a player is online on two of his accounts at the same time, matched by name and CD Hash (i.e. this user has logged in with the same account on two computers and both of those computers are connected to the server at the same time)");
                 System.out.println("\t\t2 - Check if there are two players on the server, who have at some point in the past both used the same IP at any given time.");
 
+                System.out.println("\t[-m|--minhash] {0-1} - Also report players whose strong user records have similar sets of IPs, with a Jaccard similarity of at least the given value, as level 3 incidents with that similarity as their confidence. Works with every level. Disabled by default.");
+                System.out.println("\t[-u|--minhash-subnets] - Also compare the /24 subnets of the IPs for --minhash.");
+
                 System.out.println("\t[-s|--output-strong] {path} - Output all user records separately matched by names and hashes.");
                 System.out.println("\t[-w|--output-weak] {path} - Output all user records separately matched by names, hashes and every IP used.");
+                System.out.println("\t[-o|--group-order] {order} - Order of the user records in the --output-strong and --output-weak files. Default is SIZE (most names first). Supported: " + Arrays.toString(GroupOrder.values()));
+                System.out.println("\t[-n|--top] {n} - Only output the first n user records in that order, i.e. the n largest ones by default. Default is 0 (all).");
 
                 System.out.println("\t[-b|--bad-strings] - Use bad username string matching for PR versions up to and including v1.4.11.0.");
                 System.out.println("\t\tExtra characters at the end of the username were not accounted for in the CD hash log, i.e. searching for \"vedler\" was also matched to \"vedlerr\" if they both had the same CD hash.");
 
+                System.out.println("\t[-p|--output-copresence] {path} - Output the account pairs that keep joining, playing and leaving together without sharing an IP, hash or name, most suspicious first.");
+                System.out.println("\t[-k|--copresence-top] {n} - Number of co-presence pairs to output. Default is 50.");
+                System.out.println("\t[-j|--copresence-window] {seconds} - Joins or leaves this close to each other count as aligned. Default is 10.");
+
+                System.out.println("\t[-d|--store] {path} - Append the new incidents of this run to the incident store directory, to be later listed with --history.");
+
+                System.out.println("\t[-x|--hub-threshold] {n} - Exclude shared IPs (internet cafes, LAN events, NAT gateways) linked to more than n distinct CD hashes or usernames from joining user records by IP and from the --minhash comparison. Default is 0 (disabled). The excluded IPs are reported.");
+
+                System.out.println("\t[-g|--segments] - Split the Namehack log at server crashes and empty server points and analyze the parts in parallel, using --threads threads or all available processors. The whole log is kept in memory, the results stay the same.");
+
+                System.out.println("\t[-c|--cdhash-format] {format} - CD Hash log format. Default is DEFAULT. Supported: " + Arrays.toString(CdHashFormat.values()));
+                System.out.println("\t[-f|--namehack-format] {format} - Namehack log format. Default is IPTABLES. Supported: " + Arrays.toString(NamehackFormat.values()));
+
+                System.out.println("\t[-t|--threads] {n} - Number of threads used for parsing the logs. Default is 1. With more than one thread, reading, parsing and analyzing the Namehack log are done concurrently and the CD Hash log is read in parallel, the results stay the same.");
+
                 System.out.println();
 
                 System.out.println("\tExample 1: java -jar GhostingAnalyzer-0.0.1.jar \"/var/prbf2/1/admin/logs/cdhash.log\" \"/var/prbf2/1/namehack.log\"");
                 System.out.println("\tExample 2: java -jar GhostingAnalyzer-0.0.1.jar --level 1 \"/var/prbf2/1/admin/logs/cdhash.log\" \"/var/prbf2/1/namehack.log\"");
                 System.out.println("\tExample 3: java -jar GhostingAnalyzer-0.0.1.jar -s \"userrecords_strong.txt\" -l 2 --output-weak \"userrecords_weak.txt\" \"/var/prbf2/1/admin/logs/cdhash.log\" \"/var/prbf2/1/namehack.log\" > ghosting_incidents.txt");
             }
+        } else if (args.length == 3 && (args[0].equals("--history") || args[0].equals("-q"))) {
+
+            File store = new File(args[1]);
+
+            if (!store.isDirectory()) {
+                System.out.println("The specified incident store doesn't exist.");
+                return;
+            }
+
+            history(store, args[2]);
+
         } else if (args.length >= 2) {
 
             GAConfig config = new GAConfig();
@@ -74,6 +120,32 @@ public class GhostingAnalyzer {
                             return;
                         }
 
+                        break;
+                    case "-m":
+                    case "--minhash":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        try {
+                            config.setFuzzyThreshold(Double.valueOf(args[i+1]));
+                            i++;
+                        } catch (NumberFormatException e) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        if (!(config.getFuzzyThreshold() > 0 && config.getFuzzyThreshold() <= 1)) {
+                            System.out.println("The --minhash similarity must be above 0 and at most 1.");
+                            return;
+                        }
+
+                        break;
+                    case "-u":
+                    case "--minhash-subnets":
+                        config.setFuzzySubnets(true);
                         break;
                     case "-w":
                     case "--output-weak":
@@ -97,6 +169,168 @@ public class GhostingAnalyzer {
                         config.setStrongPath(args[i+1]);
                         i++;
                         break;
+                    case "-o":
+                    case "--group-order":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        try {
+                            config.setGroupOrder(GroupOrder.valueOf(args[i+1].toUpperCase().replace('-', '_')));
+                            i++;
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Unknown user record order. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for the supported orders.");
+                            return;
+                        }
+
+                        break;
+                    case "-n":
+                    case "--top":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        try {
+                            config.setGroupTop(Integer.valueOf(args[i+1]));
+                            i++;
+                        } catch (NumberFormatException e) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        break;
+                    case "-t":
+                    case "--threads":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        try {
+                            config.setThreads(Integer.valueOf(args[i+1]));
+                            i++;
+                        } catch (NumberFormatException e) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        break;
+                    case "-p":
+                    case "--output-copresence":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        config.setCoPresencePath(args[i+1]);
+                        i++;
+                        break;
+                    case "-k":
+                    case "--copresence-top":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        try {
+                            config.setCoPresenceTop(Integer.valueOf(args[i+1]));
+                            i++;
+                        } catch (NumberFormatException e) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        break;
+                    case "-j":
+                    case "--copresence-window":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        try {
+                            config.setCoPresenceWindow(Integer.valueOf(args[i+1]));
+                            i++;
+                        } catch (NumberFormatException e) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        break;
+                    case "-d":
+                    case "--store":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        config.setStorePath(args[i+1]);
+                        i++;
+                        break;
+                    case "-x":
+                    case "--hub-threshold":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        try {
+                            config.setHubThreshold(Integer.valueOf(args[i+1]));
+                            i++;
+                        } catch (NumberFormatException e) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        break;
+                    case "-c":
+                    case "--cdhash-format":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        try {
+                            config.setCdHashFormat(CdHashFormat.valueOf(args[i+1].toUpperCase()));
+                            i++;
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Unknown CD Hash log format. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for the supported formats.");
+                            return;
+                        }
+
+                        break;
+                    case "-f":
+                    case "--namehack-format":
+
+                        if (i >= args.length-3) {
+                            System.out.println("Incorrect arguments. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for more info.");
+                            return;
+                        }
+
+                        try {
+                            config.setNamehackFormat(NamehackFormat.valueOf(args[i+1].toUpperCase()));
+                            i++;
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Unknown Namehack log format. Check \"java -jar GhostingAnalyzer-x.x.x.jar --help\" for the supported formats.");
+                            return;
+                        }
+
+                        break;
+                    case "-g":
+                    case "--segments":
+                        config.setParallelSegments(true);
+                        break;
                     case "-b":
                     case "--bad-strings":
                         config.setBadStringMatching(true);
@@ -132,24 +366,63 @@ public class GhostingAnalyzer {
 
     public static void execute(GAConfig config) {
         try {
-            UserRecords strongRecords = UserRecords.build(config, false);
+            boolean weak = config.getLevel() >= 2 || (config.getWeakPath() != null && config.getWeakPath().length() > 0);
+            boolean fuzzy = config.getFuzzyThreshold() > 0;
+
+            // Hubs are only detected if the weak records or the fuzzy matching use them, once for both
+            Set<String> hubs = Collections.emptySet();
+
+            if (config.getHubThreshold() > 0 && (weak || fuzzy)) {
+                hubs = HubDetector.detect(config, config.getHubThreshold());
+            }
+
+            UserRecords strongRecords = UserRecords.build(config, false, hubs);
             UserRecords weakRecords = null;
 
-            if (config.getLevel() >= 2 || (config.getWeakPath() != null && config.getWeakPath().length() > 0)) {
-                weakRecords = UserRecords.build(config, true);
+            if (weak) {
+                weakRecords = UserRecords.build(config, true, hubs);
             }
 
             strongRecords.outWarnings();
 
+            if (hubs.size() > 0) {
+                List<String> excludedFrom = new ArrayList<>();
+                if (weak) {
+                    excludedFrom.add("joining user records by IP");
+                }
+                if (fuzzy) {
+                    excludedFrom.add("the MinHash comparison");
+                }
+
+                System.err.println("Info: The following IPs (" + hubs.size() + ") were linked to too many distinct CD hashes or usernames and were excluded from " +
+                        String.join(" and from ", excludedFrom) + ":");
+                System.err.println(String.join(", ", hubs));
+            }
+
+            List<GhostingIncident> incidents = analyzeConnectionList(config, strongRecords, weakRecords);
+
             // This automatically outputs to std output
-            writeLinesToStdOut(analyzeConnectionList(config, strongRecords, weakRecords));
+            writeLinesToStdOut(incidents);
+
+            if (config.getStorePath() != null && config.getStorePath().length() > 0) {
+                appendToStore(incidents, config);
+            }
+
+            if (config.getCoPresencePath() != null && config.getCoPresencePath().length() > 0) {
+                CoPresenceAnalyzer coPresence = new CoPresenceAnalyzer(config, strongRecords, weakRecords);
+                writeLinesToFile(coPresence.analyze(), config.getCoPresencePath());
+
+                if (coPresence.isApproximate()) {
+                    System.err.println("Warning: Too many account pairs were online together to keep all of them, the weakest ones were dropped along the way. The co-presence scores are approximate.");
+                }
+            }
 
             if (config.getWeakPath() != null && config.getWeakPath().length() > 0) {
-                writeLinesToFile(weakRecords.getAllUserAliases(), config.getWeakPath());
+                writeLinesToFile(weakRecords.getOrderedUserAliases(config.getGroupOrder(), config.getGroupTop()), config.getWeakPath());
             }
 
             if (config.getStrongPath() != null && config.getStrongPath().length() > 0) {
-                writeLinesToFile(strongRecords.getAllUserAliases(), config.getStrongPath());
+                writeLinesToFile(strongRecords.getOrderedUserAliases(config.getGroupOrder(), config.getGroupTop()), config.getStrongPath());
             }
         } catch (RecordBuildingException e) {
             System.err.println(e.getMessage());
@@ -159,18 +432,70 @@ public class GhostingAnalyzer {
         }
     }
 
+    public static void appendToStore(List<GhostingIncident> incidents, GAConfig config) {
+
+        // Every setting that changes which incidents are found
+        String settings = "level=" + config.getLevel() +
+                ", bad-strings=" + config.getBadStringMatching() +
+                ", hub-threshold=" + config.getHubThreshold() +
+                ", minhash=" + config.getFuzzyThreshold() +
+                ", minhash-subnets=" + config.getFuzzySubnets();
+
+        try (IncidentStore store = IncidentStore.open(new File(config.getStorePath()))) {
+            int appended = store.append(incidents, settings);
+            System.err.println("Info: " + appended + " new incidents were appended to the incident store (" + store.size() + " in total).");
+        } catch (IOException e) {
+            System.err.println("An error occurred while trying to write to the incident store: " + e.getMessage());
+        }
+    }
+
+    public static void history(File storePath, String identity) {
+        try (IncidentStore store = IncidentStore.open(storePath)) {
+            List<GhostingIncident> incidents = store.history(identity);
+
+            int[] byLevel = new int[4];
+            for (GhostingIncident incident : incidents) {
+                if (incident.getLevel() < byLevel.length) {
+                    byLevel[incident.getLevel()]++;
+                }
+            }
+
+            writeLinesToStdOut(incidents);
+            System.err.println("Info: " + incidents.size() + " incidents found for " + identity +
+                    " (level 0: " + byLevel[0] + ", level 1: " + byLevel[1] + ", level 2: " + byLevel[2] + ", level 3: " + byLevel[3] + ").");
+        } catch (IOException e) {
+            System.err.println("An error occurred while trying to read the incident store: " + e.getMessage());
+        }
+    }
+
+    // The lines are converted to strings in parallel, a batch at a time, and written in the order of the collection
     public static void writeLinesToFile(Collection<?> objects, String path) throws IOException {
         File res = new File(path);
 
         res.createNewFile();
 
-        FileWriter fw = new FileWriter(res);
+        try (Writer fw = new BufferedWriter(new FileWriter(res))) {
 
-        for (Object obj : objects) {
-            fw.write(obj.toString() + ",\n");
+            List<Object> batch = new ArrayList<>(WRITE_BATCH);
+
+            for (Object obj : objects) {
+                batch.add(obj);
+
+                if (batch.size() == WRITE_BATCH) {
+                    writeBatch(batch, fw);
+                }
+            }
+
+            writeBatch(batch, fw);
+        }
+    }
+
+    private static void writeBatch(List<Object> batch, Writer fw) throws IOException {
+        for (String line : batch.parallelStream().map(obj -> obj.toString() + ",\n").collect(Collectors.toList())) {
+            fw.write(line);
         }
 
-        fw.close();
+        batch.clear();
     }
 
     public static void writeLinesToStdOut(Collection<?> objects) {
@@ -0,0 +1,455 @@
+package analyzer;
+
+import config.GAConfig;
+import user.RecordBuildingException;
+import user.UserRecords;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Looks for accounts that keep playing at the same time without sharing an IP, hash or name, i.e. a ghost on a second computer.
+ *
+ * For every pair of accounts online together, the shared time is summed up and it is counted how often they joined
+ * and how often they left the server within the configured window of each other. The score of a pair is the fraction
+ * of their joins and leaves that were aligned, times the fraction of the shorter total playtime they spent together.
+ * Pairs already linked by checkGhosting(..) on the configured level are not reported.
+ *
+ * Only pairs that were online together get an entry. The log is streamed and cut into the same independent segments as in
+ * ConnectionParser, every segment is accumulated in parallel as soon as it ends and only a few segments are held at a time.
+ * If the number of pairs grows over the limit, the weakest half is dropped and the scores of the remaining pairs are approximate
+ * from then on, see isApproximate(). Linked pairs are kept in a separate set of pair keys, which is never pruned.
+ */
+public class CoPresenceAnalyzer {
+
+    // Pairs kept per accumulator, before the weakest half is dropped
+    private static final int MAX_PAIRS = 1 << 20;
+
+    // Segments read ahead per thread, before the oldest one is waited for
+    private static final int SEGMENTS_PER_THREAD = 2;
+
+    // Coincidences are common, a pair needs at least this many aligned joins and leaves to be reported
+    private static final int MIN_ALIGNED = 2;
+
+    private GAConfig config;
+
+    private UserRecords strongRecords;
+    private UserRecords weakRecords;
+
+    // Accounts are numbered, so a pair fits into a single long key
+    private final Map<String, Integer> ids;
+    private final List<String> names;
+
+    private boolean approximate;
+
+    public CoPresenceAnalyzer(GAConfig config, UserRecords strongRecords, UserRecords weakRecords) {
+        this.config = config;
+        this.strongRecords = strongRecords;
+        this.weakRecords = weakRecords;
+
+        this.ids = new HashMap<>();
+        this.names = new ArrayList<>();
+    }
+
+    /**
+     * @return The most suspicious pairs, at most config.getCoPresenceTop(), highest score first.
+     */
+    public List<CoPresencePair> analyze() throws RecordBuildingException {
+
+        int parallelism = config.getThreads() > 1 ? config.getThreads() : Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+
+        Accumulator total = new Accumulator();
+        Deque<Future<Accumulator>> running = new ArrayDeque<>();
+
+        try {
+            SegmentSplitter splitter = new SegmentSplitter(segment -> {
+                // Ids are assigned on the reading thread, so the segments can be accumulated without coordination
+                int[] segmentIds = new int[segment.size()];
+
+                for (int i = 0; i < segment.size(); i++) {
+                    ConnectionEvent event = segment.get(i);
+
+                    if (event.getType() == ConnectionEvent.Type.JOIN) {
+                        segmentIds[i] = id(event.getName());
+                    }
+                }
+
+                running.addLast(pool.submit(() -> accumulate(segment, segmentIds)));
+
+                // Keeps the memory bounded, reading waits for the oldest segment
+                while (running.size() > SEGMENTS_PER_THREAD * parallelism) {
+                    total.merge(await(running.pollFirst()));
+                }
+            });
+
+            ConnectionParser.readEvents(config, splitter);
+            splitter.finish();
+
+            while (!running.isEmpty()) {
+                total.merge(await(running.pollFirst()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        approximate = total.pruned;
+
+        return total.top(config.getCoPresenceTop());
+    }
+
+    /**
+     * @return Whether pairs had to be dropped during the last analyze(), in which case a pair seen again afterwards
+     * was counted from that point on only and the scores are lower bounds.
+     */
+    public boolean isApproximate() {
+        return approximate;
+    }
+
+    private int id(String name) {
+        Integer id = ids.get(name);
+
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+
+        return id;
+    }
+
+    private static Accumulator await(Future<Accumulator> future) throws RecordBuildingException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RecordBuildingException("The co-presence analysis was interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RecordBuildingException) {
+                throw (RecordBuildingException) e.getCause();
+            }
+            throw new RecordBuildingException("An error occurred during the co-presence analysis: " + e.getCause());
+        }
+    }
+
+    private static long parseTime(String timestamp) throws RecordBuildingException {
+        try {
+            LocalDateTime time = LocalDateTime.parse(timestamp);
+            return time.toEpochSecond(ZoneOffset.UTC) * 1000 + time.getNano() / 1000000;
+        } catch (DateTimeParseException e) {
+            throw new RecordBuildingException("The co-presence analysis needs ISO timestamps in the Namehack log, but found: " + timestamp);
+        }
+    }
+
+    private static long pairKey(int a, int b) {
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    private static class PairStats {
+        int sharedSessions;
+        int alignedJoins;
+        int alignedLeaves;
+        long overlapMillis;
+
+        void add(PairStats other) {
+            sharedSessions += other.sharedSessions;
+            alignedJoins += other.alignedJoins;
+            alignedLeaves += other.alignedLeaves;
+            overlapMillis += other.overlapMillis;
+        }
+
+        int aligned() {
+            return alignedJoins + alignedLeaves;
+        }
+    }
+
+    private static class Session {
+        final int id;
+        final long joined;
+        final UserConnection connection;
+
+        Session(int id, long joined, UserConnection connection) {
+            this.id = id;
+            this.joined = joined;
+            this.connection = connection;
+        }
+    }
+
+    private static class RecentLeave {
+        final int id;
+        final long left;
+
+        RecentLeave(int id, long left) {
+            this.id = id;
+            this.left = left;
+        }
+    }
+
+    // Sparse pair statistics and per account totals of one or more segments
+    private class Accumulator {
+
+        final Map<Long, PairStats> pairs = new HashMap<>();
+        final Map<Integer, long[]> accounts = new HashMap<>();
+
+        // Pairs linked by checkGhosting(..), never reported
+        final LongSet linked = new LongSet();
+
+        boolean pruned;
+
+        PairStats pair(int a, int b) {
+            return pairs.computeIfAbsent(pairKey(a, b), k -> new PairStats());
+        }
+
+        // Session count and total playtime of an account
+        void addSession(int id, long millis) {
+            long[] totals = accounts.computeIfAbsent(id, k -> new long[2]);
+            totals[0]++;
+            totals[1] += millis;
+        }
+
+        void merge(Accumulator other) {
+            linked.addAll(other.linked);
+            pruned |= other.pruned;
+
+            for (Map.Entry<Long, PairStats> entry : other.pairs.entrySet()) {
+                if (linked.contains(entry.getKey())) {
+                    continue;
+                }
+
+                PairStats stats = pairs.get(entry.getKey());
+                if (stats == null) {
+                    pairs.put(entry.getKey(), entry.getValue());
+                } else {
+                    stats.add(entry.getValue());
+                }
+            }
+
+            for (Map.Entry<Integer, long[]> entry : other.accounts.entrySet()) {
+                long[] totals = accounts.computeIfAbsent(entry.getKey(), k -> new long[2]);
+                totals[0] += entry.getValue()[0];
+                totals[1] += entry.getValue()[1];
+            }
+
+            prune();
+        }
+
+        // Keeps the memory bounded, linked pairs are never reported so they go first, then the weakest until half is left
+        void prune() {
+            if (pairs.size() <= MAX_PAIRS) {
+                return;
+            }
+
+            pairs.keySet().removeIf(linked::contains);
+
+            if (pairs.size() <= MAX_PAIRS) {
+                return;
+            }
+
+            List<Map.Entry<Long, PairStats>> entries = new ArrayList<>(pairs.entrySet());
+            entries.sort(Comparator.comparingInt((Map.Entry<Long, PairStats> e) -> e.getValue().aligned())
+                    .thenComparingLong(e -> e.getValue().overlapMillis));
+
+            for (Map.Entry<Long, PairStats> entry : entries.subList(0, entries.size() / 2)) {
+                pairs.remove(entry.getKey());
+            }
+
+            pruned = true;
+        }
+
+        List<CoPresencePair> top(int n) {
+
+            // Bounded min-heap of the best pairs so far
+            PriorityQueue<CoPresencePair> best = new PriorityQueue<>(Comparator.comparingDouble(CoPresencePair::getScore));
+
+            for (Map.Entry<Long, PairStats> entry : pairs.entrySet()) {
+                PairStats stats = entry.getValue();
+
+                if (stats.aligned() < MIN_ALIGNED || linked.contains(entry.getKey())) {
+                    continue;
+                }
+
+                int a = (int) (entry.getKey() >>> 32);
+                int b = (int) (long) entry.getKey();
+
+                long[] totalsA = accounts.get(a);
+                long[] totalsB = accounts.get(b);
+
+                double alignment = (double) stats.aligned() / (totalsA[0] + totalsB[0]);
+                long shorter = Math.min(totalsA[1], totalsB[1]);
+                double overlap = shorter > 0 ? Math.min(1.0, (double) stats.overlapMillis / shorter) : 0.0;
+
+                best.add(new CoPresencePair(names.get(a), names.get(b), alignment * overlap,
+                        stats.sharedSessions, stats.alignedJoins, stats.alignedLeaves, stats.overlapMillis / 1000, pruned));
+
+                if (best.size() > n) {
+                    best.poll();
+                }
+            }
+
+            List<CoPresencePair> result = new ArrayList<>(best);
+            result.sort(Comparator.comparingDouble(CoPresencePair::getScore).reversed());
+
+            return result;
+        }
+    }
+
+    // Open addressing set of pair keys, a pair key is never 0 as the two ids differ
+    private static class LongSet {
+
+        private long[] keys = new long[16];
+        private int size;
+
+        boolean contains(long key) {
+            int mask = keys.length - 1;
+
+            for (int slot = slot(key, mask); keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        void add(long key) {
+            if (2 * (size + 1) > keys.length) {
+                long[] old = keys;
+                keys = new long[old.length * 2];
+                size = 0;
+
+                for (long oldKey : old) {
+                    if (oldKey != 0) {
+                        add(oldKey);
+                    }
+                }
+            }
+
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = key;
+            size++;
+        }
+
+        void addAll(LongSet other) {
+            for (long key : other.keys) {
+                if (key != 0) {
+                    add(key);
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+    }
+
+    // A segment starts with an empty server and nothing carries over to the next one
+    private Accumulator accumulate(List<ConnectionEvent> segment, int[] segmentIds) throws RecordBuildingException {
+
+        Accumulator accumulator = new Accumulator();
+
+        long window = config.getCoPresenceWindow() * 1000L;
+
+        Map<String, Session> online = new HashMap<>();
+        Deque<RecentLeave> recentLeaves = new ArrayDeque<>();
+
+        long time = 0;
+
+        for (int i = 0; i < segment.size(); i++) {
+            ConnectionEvent event = segment.get(i);
+            time = parseTime(event.getTimestamp());
+
+            while (!recentLeaves.isEmpty() && time - recentLeaves.peekFirst().left > window) {
+                recentLeaves.pollFirst();
+            }
+
+            if (event.getType() == ConnectionEvent.Type.LEAVE) {
+                Session session = online.remove(event.getName());
+
+                if (session == null) {
+                    continue;
+                }
+
+                accumulator.addSession(session.id, time - session.joined);
+
+                for (Session other : online.values()) {
+                    accumulator.pair(session.id, other.id).overlapMillis += time - Math.max(session.joined, other.joined);
+                }
+
+                // Both were online when the other one left shortly before
+                for (RecentLeave leave : recentLeaves) {
+                    if (session.joined <= leave.left && leave.id != session.id) {
+                        PairStats stats = accumulator.pairs.get(pairKey(session.id, leave.id));
+
+                        if (stats != null) {
+                            stats.alignedLeaves++;
+                        }
+                    }
+                }
+
+                recentLeaves.addLast(new RecentLeave(session.id, time));
+                continue;
+            }
+
+            UserConnection connection = new UserConnection(event.getName(), event.getIp(), config.getLevel());
+
+            if (config.getLevel() < 2) {
+                connection.attachUserObjects(strongRecords);
+            } else {
+                connection.attachUserObjects(strongRecords, weakRecords);
+            }
+
+            Session session = new Session(segmentIds[i], time, connection);
+
+            for (Session other : online.values()) {
+                if (other.id == session.id) {
+                    continue;
+                }
+
+                PairStats stats = accumulator.pair(session.id, other.id);
+                stats.sharedSessions++;
+
+                if (time - other.joined <= window) {
+                    stats.alignedJoins++;
+                }
+
+                if (other.connection.checkGhosting(connection) != -1) {
+                    accumulator.linked.add(pairKey(session.id, other.id));
+                }
+            }
+
+            online.put(event.getName(), session);
+        }
+
+        // The segment ended with a crash, the players left at some point after the last event
+        List<Session> remaining = new ArrayList<>(online.values());
+
+        for (int i = 0; i < remaining.size(); i++) {
+            Session session = remaining.get(i);
+            accumulator.addSession(session.id, time - session.joined);
+
+            for (int j = i + 1; j < remaining.size(); j++) {
+                Session other = remaining.get(j);
+                accumulator.pair(session.id, other.id).overlapMillis += time - Math.max(session.joined, other.joined);
+            }
+        }
+
+        accumulator.prune();
+
+        return accumulator;
+    }
+}
@@ -0,0 +1,55 @@
+package analyzer;
+
+import java.util.Locale;
+
+public class CoPresencePair {
+
+    private String primary;
+    private String secondary;
+
+    private double score;
+    private int sharedSessions;
+    private int alignedJoins;
+    private int alignedLeaves;
+    private long overlapSeconds;
+
+    // Pairs were dropped to bound the memory, the counts might be incomplete
+    private boolean approximate;
+
+    public CoPresencePair(String primary, String secondary, double score, int sharedSessions, int alignedJoins, int alignedLeaves, long overlapSeconds,
+                          boolean approximate) {
+        this.primary = primary;
+        this.secondary = secondary;
+        this.score = score;
+        this.sharedSessions = sharedSessions;
+        this.alignedJoins = alignedJoins;
+        this.alignedLeaves = alignedLeaves;
+        this.overlapSeconds = overlapSeconds;
+        this.approximate = approximate;
+    }
+
+    public String getPrimary() {
+        return primary;
+    }
+
+    public String getSecondary() {
+        return secondary;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return "CoPresencePair{" +
+                "names=[" + primary + ", " + secondary +
+                "], score=" + String.format(Locale.ROOT, "%.3f", score) +
+                ", sharedSessions=" + sharedSessions +
+                ", alignedJoins=" + alignedJoins +
+                ", alignedLeaves=" + alignedLeaves +
+                ", overlapSeconds=" + overlapSeconds +
+                (approximate ? ", approximate=true" : "") +
+                '}';
+    }
+}
@@ -0,0 +1,64 @@
+package analyzer;
+
+public class ConnectionEvent {
+
+    public enum Type {
+        JOIN,
+        LEAVE
+    }
+
+    private Type type;
+    private String timestamp;
+    private String name;
+    private String ip;
+    private int slot;
+
+    private ConnectionEvent(Type type, String timestamp, String name, String ip, int slot) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.name = name;
+        this.ip = ip;
+        this.slot = slot;
+    }
+
+    public static ConnectionEvent join(String timestamp, String name, String ip, int slot) {
+        return new ConnectionEvent(Type.JOIN, timestamp, name, ip, slot);
+    }
+
+    public static ConnectionEvent leave(String timestamp, String name) {
+        return new ConnectionEvent(Type.LEAVE, timestamp, name, null, -1);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Only set for JOIN events
+    public String getIp() {
+        return ip;
+    }
+
+    // The nth player on the server, only set for JOIN events
+    public int getSlot() {
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionEvent{" +
+                "type=" + type +
+                ", timestamp='" + timestamp + '\'' +
+                ", name='" + name + '\'' +
+                ", ip='" + ip + '\'' +
+                ", slot=" + slot +
+                '}';
+    }
+}
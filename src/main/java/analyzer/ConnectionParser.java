@@ -1,6 +1,8 @@
 package analyzer;
 
 import config.GAConfig;
+import format.Field;
+import format.NamehackFormat;
 import user.RecordBuildingException;
 import user.UserRecords;
 
@@ -8,8 +10,9 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class ConnectionParser {
 
@@ -19,6 +22,9 @@ public class ConnectionParser {
     private UserRecords strongRecords;
     private UserRecords weakRecords;
 
+    // Concurrent users on the server
+    private Map<String, UserConnection> connected;
+
     public ConnectionParser(GAConfig config, UserRecords strongRecords, UserRecords weakRecords) {
         this.config = config;
         this.incidents = new ArrayList<>();
@@ -32,73 +38,229 @@ public class ConnectionParser {
             Keep a map of concurrent users on the server.
             If a new join ID doesn't match the number of players on the server, the server must have crashed.
 
-            Joining regex: "\[([^\s]{26})]\sNHACK\sAdded\s"([^\s]{1,16})"\son\s((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?))\s\[([0-9]{1,3})]\."
-            Groups:
-                1) Timestamp
-                2) Name
-                3) IP
-                4-7) IP sub-parts
-                8) nth player on the server (needed to check for server crashes)
-
-            Leaving regex: "\[([^\s]{26})]\sNACK\sDeleted\s"([^\s]{1,20})"\."
-            Groups:
-                1) Timestamp
-                2) Name
+            The join and leave lines are declared by the configured NamehackFormat.
          */
 
-        Map<String, UserConnection> connected = new HashMap<>();
+        connected = new HashMap<>();
+
+        if (config.getParallelSegments()) {
+            return parseSegments();
+        }
+
+        readEvents(config, this::analyze);
+
+        return incidents;
+    }
+
+    /**
+     * Nothing carries over from one segment between server crashes and empty server points to the next, so the segments are
+     * analyzed in parallel and their incidents are concatenated in log order, which gives the same result as the sequential analysis.
+     *
+     * The sequential analysis only replaces its map on a crash, so at an empty server point its table is as large as it grew since the crash.
+     * The map of a segment gets the same table size, so the connected users are iterated, and the incidents listed, in the same order.
+     */
+    private List<GhostingIncident> parseSegments() throws RecordBuildingException {
+
+        List<ConnectionEvent> events = new ArrayList<>();
+        readEvents(config, events::add);
+
+        List<Integer> largest = new ArrayList<>();
+        List<Integer> boundaries = findSegmentBoundaries(events, largest);
+
+        int parallelism = config.getThreads() > 1 ? config.getThreads() : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            incidents.addAll(pool.invoke(new SegmentTask(events, boundaries, largest, 0, boundaries.size() - 1)));
+        } catch (RuntimeException e) {
+            // Unwrap the exception thrown by one of the segments
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof RecordBuildingException) {
+                    throw (RecordBuildingException) cause;
+                }
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+
+        return incidents;
+    }
+
+    static void readEvents(GAConfig config, ConnectionPipeline.EventHandler handler) throws RecordBuildingException {
+
+        if (config.getThreads() > 1) {
+            // Reading, line matching and handling the events are done on separate threads
+            new ConnectionPipeline(config.getConnectionFile(), config.getNamehackFormat(), config.getThreads()).run(handler);
+            return;
+        }
 
         try (BufferedReader br = new BufferedReader(new FileReader(config.getConnectionFile()))) {
-            Pattern conPat = Pattern.compile("\\[([^\\s]{26})]\\sNHACK\\sAdded\\s\"([^\\s]{1,20})\"\\son\\s((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?))\\s\\[([0-9]{1,3})]\\.");
-            Pattern discPat = Pattern.compile("\\[([^\\s]{26})]\\sNACK\\sDeleted\\s\"([^\\s]{1,20})\"\\.");
 
             String line;
             while ((line = br.readLine()) != null) {
+                ConnectionEvent event = parseLine(config.getNamehackFormat(), line);
 
-                Matcher matcher = conPat.matcher(line);
-                if (matcher.find() && matcher.groupCount() >= 8) {
-                    String timestamp = matcher.group(1);
-
-                    // Check for server crash
-                    if (Integer.valueOf(matcher.group(8))-1 != connected.size()) {
-                        // Server must have crashed, empty out the connection list
-                        connected = new HashMap<>();
-                    }
-
-                    String name = matcher.group(2);
-                    UserConnection newConnection = new UserConnection(name, matcher.group(3), config.getLevel());
-
-                    // Load in the UserAlias objects
-                    if (config.getLevel() < 2) {
-                        newConnection.attachUserObjects(strongRecords);
-                    } else {
-                        newConnection.attachUserObjects(strongRecords, weakRecords);
-                    }
-
-                    for (UserConnection existingConnection : connected.values()) {
-                        int incidentLevel = existingConnection.checkGhosting(newConnection);
-
-                        if (incidentLevel != -1) {
-                            incidents.add(new GhostingIncident(existingConnection, newConnection, incidentLevel, timestamp));
-                        }
-                    }
-
-                    connected.put(name, newConnection);
-
-                } else {
-                    // Joining was not found, now check for disconnect
-                    matcher = discPat.matcher(line);
-                    if (matcher.find() && matcher.groupCount() >= 2) {
-                        connected.remove(matcher.group(2));
-                    }
+                if (event != null) {
+                    handler.handle(event);
                 }
             }
 
         } catch (IOException e) {
             throw new RecordBuildingException("An error occurred while the user record map was being built: " + e.getMessage());
         }
+    }
 
-        return incidents;
+    /**
+     * Quick scan over the events, only keeping track of the names on the server.
+     *
+     * @param events Join and leave events in log order.
+     * @param largest Filled with the largest number of names on the server since the last crash, before each segment.
+     * @return Start indices of the segments, with events.size() as the last element.
+     */
+    static List<Integer> findSegmentBoundaries(List<ConnectionEvent> events, List<Integer> largest) {
+
+        List<Integer> boundaries = new ArrayList<>();
+        boundaries.add(0);
+        largest.add(0);
+
+        SegmentSplitter splitter = new SegmentSplitter(segment -> { });
+
+        for (int i = 0; i < events.size(); i++) {
+            if (splitter.startsSegment(events.get(i)) && i > 0) {
+                boundaries.add(i);
+                largest.add(splitter.getLargestBeforeSegment());
+            }
+        }
+
+        boundaries.add(events.size());
+
+        return boundaries;
+    }
+
+    private class SegmentTask extends RecursiveTask<List<GhostingIncident>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<ConnectionEvent> events;
+        private final List<Integer> boundaries;
+        private final List<Integer> largest;
+
+        // Range of segments, boundaries.get(from) until boundaries.get(to)
+        private final int from;
+        private final int to;
+
+        SegmentTask(List<ConnectionEvent> events, List<Integer> boundaries, List<Integer> largest, int from, int to) {
+            this.events = events;
+            this.boundaries = boundaries;
+            this.largest = largest;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<GhostingIncident> compute() {
+
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+
+                SegmentTask left = new SegmentTask(events, boundaries, largest, from, middle);
+                SegmentTask right = new SegmentTask(events, boundaries, largest, middle, to);
+
+                left.fork();
+                List<GhostingIncident> result = new ArrayList<>(right.compute());
+                result.addAll(0, left.join());
+
+                return result;
+            }
+
+            // Single segment, analyzed with its own concurrent user map of the size the sequential one would have
+            ConnectionParser segmentParser = new ConnectionParser(config, strongRecords, weakRecords);
+            segmentParser.connected = new HashMap<>(mapCapacity(largest.get(from)));
+
+            try {
+                for (ConnectionEvent event : events.subList(boundaries.get(from), boundaries.get(to))) {
+                    segmentParser.analyze(event);
+                }
+            } catch (RecordBuildingException e) {
+                throw new CompletionException(e);
+            }
+
+            return segmentParser.incidents;
+        }
+    }
+
+    // A HashMap never shrinks, its table is the smallest one that has held this many entries without growing, 16 at least
+    private static int mapCapacity(int size) {
+        int capacity = 16;
+
+        while (size > capacity / 4 * 3) {
+            capacity <<= 1;
+        }
+
+        return capacity;
+    }
+
+    /**
+     * Tokenizes a single namehack log line. Does not touch any parser state, so it is safe to call from several threads.
+     *
+     * @param format Namehack log dialect.
+     * @param line Line from the namehack log.
+     * @return Join or leave event, or null if the line is neither.
+     */
+    public static ConnectionEvent parseLine(NamehackFormat format, String line) {
+
+        String[] fields = format.getJoinScanner().scan(line);
+        if (fields != null) {
+            return ConnectionEvent.join(fields[Field.TIMESTAMP.ordinal()], fields[Field.NAME.ordinal()], fields[Field.IP.ordinal()],
+                    Integer.valueOf(fields[Field.SLOT.ordinal()]));
+        }
+
+        // Joining was not found, now check for disconnect
+        fields = format.getLeaveScanner().scan(line);
+        if (fields != null) {
+            return ConnectionEvent.leave(fields[Field.TIMESTAMP.ordinal()], fields[Field.NAME.ordinal()]);
+        }
+
+        return null;
+    }
+
+    // Applies joins and leaves to the concurrent user map, events must be passed in log order
+    private void analyze(ConnectionEvent event) throws RecordBuildingException {
+
+        if (event.getType() == ConnectionEvent.Type.LEAVE) {
+            connected.remove(event.getName());
+            return;
+        }
+
+        // Check for server crash
+        if (event.getSlot()-1 != connected.size()) {
+            // Server must have crashed, empty out the connection list
+            connected = new HashMap<>();
+        }
+
+        String name = event.getName();
+        UserConnection newConnection = new UserConnection(name, event.getIp(), config.getLevel());
+
+        // Load in the UserAlias objects
+        if (config.getLevel() < 2) {
+            newConnection.attachUserObjects(strongRecords);
+        } else {
+            newConnection.attachUserObjects(strongRecords, weakRecords);
+        }
+
+        for (UserConnection existingConnection : connected.values()) {
+            int incidentLevel = existingConnection.checkGhosting(newConnection);
+
+            if (incidentLevel == 3) {
+                incidents.add(new GhostingIncident(existingConnection, newConnection, incidentLevel, event.getTimestamp(),
+                        existingConnection.getSimilarity(newConnection)));
+            } else if (incidentLevel != -1) {
+                incidents.add(new GhostingIncident(existingConnection, newConnection, incidentLevel, event.getTimestamp()));
+            }
+        }
+
+        connected.put(name, newConnection);
     }
 
 }
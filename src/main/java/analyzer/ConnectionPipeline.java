@@ -0,0 +1,126 @@
+package analyzer;
+
+import format.NamehackFormat;
+import user.RecordBuildingException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Staged namehack log processing.
+ *
+ * A reader thread fills large buffers and cuts the log into batches of lines, a pool of parser threads tokenizes
+ * the batches in parallel and the calling thread acts as the analyzer stage, handling the parsed events strictly in log order.
+ *
+ * The stages are connected by a bounded queue of pending batches, so the reader blocks when the parsers or the analyzer
+ * fall behind and memory use stays constant regardless of the log size.
+ */
+public class ConnectionPipeline {
+
+    public interface EventHandler {
+        void handle(ConnectionEvent event) throws RecordBuildingException;
+    }
+
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    private static final int BATCH_SIZE = 4096;
+
+    // Marks the end of the log in the batch queue
+    private static final Future<List<ConnectionEvent>> END = CompletableFuture.completedFuture(null);
+
+    private final File connectionFile;
+    private final NamehackFormat format;
+    private final int parserThreads;
+
+    public ConnectionPipeline(File connectionFile, NamehackFormat format, int parserThreads) {
+        this.connectionFile = connectionFile;
+        this.format = format;
+        this.parserThreads = Math.max(1, parserThreads);
+    }
+
+    public void run(EventHandler handler) throws RecordBuildingException {
+
+        ExecutorService parsers = Executors.newFixedThreadPool(parserThreads, r -> {
+            Thread t = new Thread(r, "namehack-parser");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Batches are queued in log order, each one as the future of its parse result
+        BlockingQueue<Future<List<ConnectionEvent>>> batches = new ArrayBlockingQueue<>(parserThreads * 2);
+
+        Thread reader = new Thread(() -> read(parsers, batches), "namehack-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            Future<List<ConnectionEvent>> batch;
+            while ((batch = batches.take()) != END) {
+                for (ConnectionEvent event : batch.get()) {
+                    handler.handle(event);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RecordBuildingException("The namehack log processing was interrupted.");
+        } catch (ExecutionException e) {
+            throw new RecordBuildingException("An error occurred while the user record map was being built: " + e.getCause().getMessage());
+        } finally {
+            // Stops the reader as well, if the analyzer stage failed before reaching the end of the log
+            reader.interrupt();
+            parsers.shutdownNow();
+        }
+    }
+
+    private void read(ExecutorService parsers, BlockingQueue<Future<List<ConnectionEvent>>> batches) {
+        try {
+            try (BufferedReader br = new BufferedReader(new FileReader(connectionFile), READ_BUFFER_SIZE)) {
+
+                List<String> lines = new ArrayList<>(BATCH_SIZE);
+
+                String line;
+                while ((line = br.readLine()) != null) {
+                    lines.add(line);
+
+                    if (lines.size() == BATCH_SIZE) {
+                        batches.put(submit(parsers, lines));
+                        lines = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+
+                if (!lines.isEmpty()) {
+                    batches.put(submit(parsers, lines));
+                }
+
+            } catch (IOException e) {
+                CompletableFuture<List<ConnectionEvent>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                batches.put(failed);
+            }
+
+            batches.put(END);
+        } catch (InterruptedException e) {
+            // The analyzer stage has stopped, nothing is waiting for the rest of the log anymore
+        }
+    }
+
+    private Future<List<ConnectionEvent>> submit(ExecutorService parsers, List<String> lines) {
+        return parsers.submit(() -> {
+            List<ConnectionEvent> events = new ArrayList<>();
+
+            for (String line : lines) {
+                ConnectionEvent event = ConnectionParser.parseLine(format, line);
+
+                if (event != null) {
+                    events.add(event);
+                }
+            }
+
+            return events;
+        });
+    }
+}
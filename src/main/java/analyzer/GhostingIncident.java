@@ -2,6 +2,7 @@ package analyzer;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class GhostingIncident {
 
@@ -9,13 +10,37 @@ public class GhostingIncident {
     private int level;
     private String timestamp;
 
+    // Only known for fuzzy (level 3) incidents
+    private double confidence;
+
     public GhostingIncident(UserConnection primary, UserConnection secondary, int level, String timestamp) {
+        this(primary, secondary, level, timestamp, -1);
+    }
+
+    public GhostingIncident(UserConnection primary, UserConnection secondary, int level, String timestamp, double confidence) {
         this.connections = new ArrayList<>();
         connections.add(primary);
         connections.add(secondary);
 
         this.level = level;
         this.timestamp = timestamp;
+        this.confidence = confidence;
+    }
+
+    public List<UserConnection> getConnections() {
+        return connections;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public double getConfidence() {
+        return confidence;
     }
 
     @Override
@@ -30,6 +55,7 @@ public class GhostingIncident {
         return "GhostingIncident{" +
                 "connections=[" + String.join(", ", connString) +
                 "], level=" + level +
+                (confidence >= 0 ? ", confidence=" + String.format(Locale.ROOT, "%.2f", confidence) : "") +
                 ", timestamp='" + timestamp + '\'' +
                 '}';
     }
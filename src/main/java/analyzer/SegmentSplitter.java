@@ -0,0 +1,95 @@
+package analyzer;
+
+import user.RecordBuildingException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cuts the connection events into segments at server crashes and at points where the server is empty. Nothing carries over
+ * from one segment to the next, so they can be analyzed independently. Only the names on the server and the current segment are kept.
+ */
+class SegmentSplitter implements ConnectionPipeline.EventHandler {
+
+    interface SegmentHandler {
+        void handle(List<ConnectionEvent> segment) throws RecordBuildingException;
+    }
+
+    private final SegmentHandler handler;
+
+    private Set<String> online;
+    private List<ConnectionEvent> segment;
+
+    // Largest number of names on the server since the last crash, and its value when the current segment started
+    private int largest;
+    private int largestBeforeSegment;
+
+    SegmentSplitter(SegmentHandler handler) {
+        this.handler = handler;
+        this.online = new HashSet<>();
+        this.segment = new ArrayList<>();
+    }
+
+    /**
+     * Only keeps track of the names on the server, events must be passed in log order.
+     *
+     * @return Whether the event is the first one of a new segment.
+     */
+    boolean startsSegment(ConnectionEvent event) {
+
+        if (event.getType() == ConnectionEvent.Type.LEAVE) {
+            online.remove(event.getName());
+            return false;
+        }
+
+        // Either the server is empty or it has crashed, same check as in ConnectionParser.analyze(..)
+        boolean crashed = event.getSlot()-1 != online.size();
+        boolean starts = online.isEmpty() || crashed;
+
+        if (crashed) {
+            largest = 0;
+        }
+
+        if (starts) {
+            online = new HashSet<>();
+            largestBeforeSegment = largest;
+        }
+
+        online.add(event.getName());
+        largest = Math.max(largest, online.size());
+
+        return starts;
+    }
+
+    /**
+     * @return Largest number of names on the server between the last crash and the start of the current segment, 0 if it started with a crash.
+     */
+    int getLargestBeforeSegment() {
+        return largestBeforeSegment;
+    }
+
+    @Override
+    public void handle(ConnectionEvent event) throws RecordBuildingException {
+
+        if (startsSegment(event) && !segment.isEmpty()) {
+            finish();
+        }
+
+        segment.add(event);
+    }
+
+    // Passes on the last segment, call after the last event
+    void finish() throws RecordBuildingException {
+
+        if (segment.isEmpty()) {
+            return;
+        }
+
+        List<ConnectionEvent> finished = segment;
+        segment = new ArrayList<>();
+
+        handler.handle(finished);
+    }
+}
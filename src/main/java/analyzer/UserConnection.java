@@ -1,5 +1,6 @@
 package analyzer;
 
+import user.FuzzyLinks;
 import user.RecordBuildingException;
 import user.UserAlias;
 import user.UserRecords;
@@ -10,6 +11,7 @@ public class UserConnection {
     private String ip;
     private UserAlias strongUserObject;
     private UserAlias weakUserObject;
+    private FuzzyLinks fuzzyLinks;
 
     private int configLevel;
 
@@ -22,6 +24,7 @@ public class UserConnection {
     // Levels 0 and 1
     public void attachUserObjects(UserRecords strongRecords) throws RecordBuildingException {
         strongUserObject = strongRecords.findByName(name);
+        fuzzyLinks = strongRecords.getFuzzyLinks();
 
         if (strongUserObject == null) {
             throw new RecordBuildingException("User object was not found, although the user records should have been built with the same data. Are you using logs from or before PR v1.4.11.0? (Enable --bad-strings flag or check --help for more info)");
@@ -32,6 +35,7 @@ public class UserConnection {
     public void attachUserObjects(UserRecords strongRecords, UserRecords weakRecords) throws RecordBuildingException {
         strongUserObject = strongRecords.findByName(name);
         weakUserObject = weakRecords.findByName(name);
+        fuzzyLinks = strongRecords.getFuzzyLinks();
 
         if (weakUserObject == null || strongUserObject == null) {
             throw new RecordBuildingException("User object was not found, although the user records should have been built with the same data. Are you using logs from or before PR v1.4.11.0? (Enable --bad-strings flag or check --help for more info)");
@@ -57,9 +61,22 @@ public class UserConnection {
             }
         }
 
+        // Fuzzy matching is independent of the level, it is only done if it was enabled
+        if (getSimilarity(other) >= 0) {
+            return 3;
+        }
+
         return -1;
     }
 
+    // Similarity of the IP sets of the two strong user objects, -1 if they are not linked
+    public double getSimilarity(UserConnection other) {
+        if (fuzzyLinks == null) {
+            return -1;
+        }
+        return fuzzyLinks.similarity(this.getStrongUserObject(), other.getStrongUserObject());
+    }
+
     public String getName() {
         return name;
     }
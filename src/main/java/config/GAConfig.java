@@ -1,13 +1,31 @@
 package config;
 
+import format.CdHashFormat;
+import format.NamehackFormat;
+import user.GroupOrder;
+
 import java.io.File;
 
 public class GAConfig {
 
     private String weakPath;
     private String strongPath;
+    private String storePath;
+    private String coPresencePath;
     private int level;
     private boolean badStringMatching;
+    private int threads;
+    private int hubThreshold;
+    private boolean parallelSegments;
+    private int coPresenceTop;
+    private int coPresenceWindow;
+    private double fuzzyThreshold;
+    private boolean fuzzySubnets;
+    private GroupOrder groupOrder;
+    private int groupTop;
+
+    private CdHashFormat cdHashFormat;
+    private NamehackFormat namehackFormat;
 
     private File cdHashFile;
     private File connectionFile;
@@ -15,6 +33,17 @@ public class GAConfig {
     public GAConfig() {
         this.level = 0;
         this.badStringMatching = false;
+        this.threads = 1;
+        this.hubThreshold = 0;
+        this.parallelSegments = false;
+        this.coPresenceTop = 50;
+        this.coPresenceWindow = 10;
+        this.fuzzyThreshold = 0;
+        this.fuzzySubnets = false;
+        this.groupOrder = GroupOrder.SIZE;
+        this.groupTop = 0;
+        this.cdHashFormat = CdHashFormat.DEFAULT;
+        this.namehackFormat = NamehackFormat.IPTABLES;
     }
     public String getWeakPath() {
         return weakPath;
@@ -32,6 +61,22 @@ public class GAConfig {
         this.strongPath = strongPath;
     }
 
+    public String getStorePath() {
+        return storePath;
+    }
+
+    public void setStorePath(String storePath) {
+        this.storePath = storePath;
+    }
+
+    public String getCoPresencePath() {
+        return coPresencePath;
+    }
+
+    public void setCoPresencePath(String coPresencePath) {
+        this.coPresencePath = coPresencePath;
+    }
+
     public Integer getLevel() {
         return level;
     }
@@ -48,6 +93,94 @@ public class GAConfig {
         this.badStringMatching = badStringMatching;
     }
 
+    public Integer getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public Integer getHubThreshold() {
+        return hubThreshold;
+    }
+
+    public void setHubThreshold(int hubThreshold) {
+        this.hubThreshold = hubThreshold;
+    }
+
+    public Boolean getParallelSegments() {
+        return parallelSegments;
+    }
+
+    public void setParallelSegments(boolean parallelSegments) {
+        this.parallelSegments = parallelSegments;
+    }
+
+    public Integer getCoPresenceTop() {
+        return coPresenceTop;
+    }
+
+    public void setCoPresenceTop(int coPresenceTop) {
+        this.coPresenceTop = coPresenceTop;
+    }
+
+    public Integer getCoPresenceWindow() {
+        return coPresenceWindow;
+    }
+
+    public void setCoPresenceWindow(int coPresenceWindow) {
+        this.coPresenceWindow = coPresenceWindow;
+    }
+
+    public Double getFuzzyThreshold() {
+        return fuzzyThreshold;
+    }
+
+    public void setFuzzyThreshold(double fuzzyThreshold) {
+        this.fuzzyThreshold = fuzzyThreshold;
+    }
+
+    public Boolean getFuzzySubnets() {
+        return fuzzySubnets;
+    }
+
+    public void setFuzzySubnets(boolean fuzzySubnets) {
+        this.fuzzySubnets = fuzzySubnets;
+    }
+
+    public GroupOrder getGroupOrder() {
+        return groupOrder;
+    }
+
+    public void setGroupOrder(GroupOrder groupOrder) {
+        this.groupOrder = groupOrder;
+    }
+
+    public Integer getGroupTop() {
+        return groupTop;
+    }
+
+    public void setGroupTop(int groupTop) {
+        this.groupTop = groupTop;
+    }
+
+    public CdHashFormat getCdHashFormat() {
+        return cdHashFormat;
+    }
+
+    public void setCdHashFormat(CdHashFormat cdHashFormat) {
+        this.cdHashFormat = cdHashFormat;
+    }
+
+    public NamehackFormat getNamehackFormat() {
+        return namehackFormat;
+    }
+
+    public void setNamehackFormat(NamehackFormat namehackFormat) {
+        this.namehackFormat = namehackFormat;
+    }
+
     public File getCdHashFile() {
         return cdHashFile;
     }
@@ -69,8 +202,21 @@ public class GAConfig {
         return "GAConfig{" +
                 "weakPath='" + weakPath + '\'' +
                 ", strongPath='" + strongPath + '\'' +
+                ", storePath='" + storePath + '\'' +
+                ", coPresencePath='" + coPresencePath + '\'' +
                 ", level=" + level +
                 ", badStringMatching=" + badStringMatching +
+                ", threads=" + threads +
+                ", hubThreshold=" + hubThreshold +
+                ", parallelSegments=" + parallelSegments +
+                ", coPresenceTop=" + coPresenceTop +
+                ", coPresenceWindow=" + coPresenceWindow +
+                ", fuzzyThreshold=" + fuzzyThreshold +
+                ", fuzzySubnets=" + fuzzySubnets +
+                ", groupOrder=" + groupOrder +
+                ", groupTop=" + groupTop +
+                ", cdHashFormat=" + cdHashFormat +
+                ", namehackFormat=" + namehackFormat +
                 ", cdHashFile=" + cdHashFile.getAbsolutePath() +
                 ", connectionFile=" + connectionFile.getAbsolutePath() +
                 '}';
@@ -0,0 +1,34 @@
+package format;
+
+import static format.LineScanner.CharClass.LOWER_ALPHANUMERIC;
+import static format.LineScanner.CharClass.NON_SPACE;
+
+/**
+ * Supported CD hash log dialects. Every dialect declares its record line once, a new dialect is just a new constant.
+ *
+ * Record lines must capture HASH, NAME and IP.
+ */
+public enum CdHashFormat {
+
+    // [2017-06-18 08:51] 0123456789abcdef0123456789abcdef TAG name 127.0.0.1
+    // The tag is optional, but its separating space is still there when it is left out
+    DEFAULT(
+            LineScanner.builder()
+                    .literal("[").run(NON_SPACE, 8, 10).literal(" ").run(NON_SPACE, 5, 5)
+                    .literal("] ").capture(Field.HASH, LOWER_ALPHANUMERIC, 32, 32)
+                    .literal(" ").optional(Field.TAG, NON_SPACE, 1, 6)
+                    .literal(" ").capture(Field.NAME, NON_SPACE, 1, 20)
+                    .literal(" ").ip(Field.IP)
+                    .build()
+    );
+
+    private final LineScanner recordScanner;
+
+    CdHashFormat(LineScanner recordScanner) {
+        this.recordScanner = recordScanner;
+    }
+
+    public LineScanner getRecordScanner() {
+        return recordScanner;
+    }
+}
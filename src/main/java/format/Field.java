@@ -0,0 +1,11 @@
+package format;
+
+public enum Field {
+    TIMESTAMP,
+    HASH,
+    TAG,
+    NAME,
+    IP,
+    // nth player on the server (needed to check for server crashes)
+    SLOT
+}
@@ -0,0 +1,310 @@
+package format;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed-field line scanner, compiled once from a log format declaration.
+ *
+ * A scanner is a flat list of elements (literals, bounded character runs, IP octets and capture markers) matched left to right.
+ * It finds the first match in a line the same way the equivalent regular expression would, greedy runs and optional parts
+ * backtrack in the same order, but there is no general regex machinery involved, so matching a line is only a few character comparisons.
+ *
+ * A space in a literal matches any single whitespace character, like \s would.
+ */
+public class LineScanner {
+
+    private static final int FIELD_COUNT = Field.values().length;
+
+    private final Element[] elements;
+
+    private LineScanner(List<Element> elements) {
+        this.elements = elements.toArray(new Element[0]);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param line Line from the log.
+     * @return Captured field values indexed by Field.ordinal(), unmatched optional fields are null. Null if the line does not match.
+     */
+    public String[] scan(String line) {
+
+        int[] groups = new int[FIELD_COUNT * 2];
+        Arrays.fill(groups, -1);
+
+        // Only try the positions where the leading literal could start
+        char first = elements[0] instanceof Literal ? ((Literal) elements[0]).text.charAt(0) : ' ';
+
+        for (int start = 0; start <= line.length(); start++) {
+            if (first != ' ') {
+                start = line.indexOf(first, start);
+                if (start < 0) {
+                    return null;
+                }
+            }
+
+            if (match(line, 0, start, groups) >= 0) {
+                String[] values = new String[FIELD_COUNT];
+
+                for (int f = 0; f < FIELD_COUNT; f++) {
+                    if (groups[f * 2] >= 0) {
+                        values[f] = line.substring(groups[f * 2], groups[f * 2 + 1]);
+                    }
+                }
+
+                return values;
+            }
+        }
+
+        return null;
+    }
+
+    // Matches the elements from index onwards, returns the end of the match or -1
+    private int match(String line, int index, int pos, int[] groups) {
+        if (index == elements.length) {
+            return pos;
+        }
+        return elements[index].match(this, line, index, pos, groups);
+    }
+
+    private static boolean isSpace(char c) {
+        // Same set as \s
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    public enum CharClass {
+        NON_SPACE,
+        DIGIT,
+        LOWER_ALPHANUMERIC;
+
+        boolean contains(char c) {
+            switch (this) {
+                case NON_SPACE:
+                    return !isSpace(c);
+                case DIGIT:
+                    return isDigit(c);
+                default:
+                    return isDigit(c) || (c >= 'a' && c <= 'z');
+            }
+        }
+    }
+
+    public static class Builder {
+
+        private List<Element> elements = new ArrayList<>();
+
+        public Builder literal(String text) {
+            elements.add(new Literal(text));
+            return this;
+        }
+
+        // Skipped run of 'min' to 'max' characters
+        public Builder run(CharClass charClass, int min, int max) {
+            elements.add(new Run(charClass, min, max));
+            return this;
+        }
+
+        public Builder capture(Field field, CharClass charClass, int min, int max) {
+            elements.add(new GroupStart(field));
+            elements.add(new Run(charClass, min, max));
+            elements.add(new GroupEnd(field));
+            return this;
+        }
+
+        // Captured run, that can also be left out entirely
+        public Builder optional(Field field, CharClass charClass, int min, int max) {
+            Optional optional = new Optional();
+            elements.add(optional);
+            capture(field, charClass, min, max);
+            optional.skipTo = elements.size();
+            return this;
+        }
+
+        // Dotted IPv4 address, every octet 0-255
+        public Builder ip(Field field) {
+            elements.add(new GroupStart(field));
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) {
+                    elements.add(new Literal("."));
+                }
+                elements.add(new Octet());
+            }
+            elements.add(new GroupEnd(field));
+            return this;
+        }
+
+        public LineScanner build() {
+            if (elements.isEmpty()) {
+                throw new IllegalStateException("A line scanner needs at least one element.");
+            }
+            return new LineScanner(elements);
+        }
+    }
+
+    private static abstract class Element {
+        abstract int match(LineScanner scanner, String line, int index, int pos, int[] groups);
+    }
+
+    private static class Literal extends Element {
+
+        private final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+
+        @Override
+        int match(LineScanner scanner, String line, int index, int pos, int[] groups) {
+            if (pos + text.length() > line.length()) {
+                return -1;
+            }
+
+            for (int i = 0; i < text.length(); i++) {
+                char expected = text.charAt(i);
+                char actual = line.charAt(pos + i);
+
+                if (expected == ' ' ? !isSpace(actual) : expected != actual) {
+                    return -1;
+                }
+            }
+
+            return scanner.match(line, index + 1, pos + text.length(), groups);
+        }
+    }
+
+    private static class Run extends Element {
+
+        private final CharClass charClass;
+        private final int min;
+        private final int max;
+
+        Run(CharClass charClass, int min, int max) {
+            this.charClass = charClass;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        int match(LineScanner scanner, String line, int index, int pos, int[] groups) {
+            int length = 0;
+            while (length < max && pos + length < line.length() && charClass.contains(line.charAt(pos + length))) {
+                length++;
+            }
+
+            // Greedy, give back one character at a time
+            for (; length >= min; length--) {
+                int end = scanner.match(line, index + 1, pos + length, groups);
+                if (end >= 0) {
+                    return end;
+                }
+            }
+
+            return -1;
+        }
+    }
+
+    // Same as (25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?), which always prefers the longest valid octet
+    private static class Octet extends Element {
+
+        @Override
+        int match(LineScanner scanner, String line, int index, int pos, int[] groups) {
+            for (int length = 3; length >= 1; length--) {
+                if (isOctet(line, pos, length)) {
+                    int end = scanner.match(line, index + 1, pos + length, groups);
+                    if (end >= 0) {
+                        return end;
+                    }
+                }
+            }
+
+            return -1;
+        }
+
+        private static boolean isOctet(String line, int pos, int length) {
+            if (pos + length > line.length()) {
+                return false;
+            }
+
+            for (int i = 0; i < length; i++) {
+                if (!isDigit(line.charAt(pos + i))) {
+                    return false;
+                }
+            }
+
+            if (length < 3) {
+                return true;
+            }
+
+            char a = line.charAt(pos);
+            char b = line.charAt(pos + 1);
+            char c = line.charAt(pos + 2);
+
+            return a == '0' || a == '1' || (a == '2' && (b < '5' || (b == '5' && c <= '5')));
+        }
+    }
+
+    private static class Optional extends Element {
+
+        private int skipTo;
+
+        @Override
+        int match(LineScanner scanner, String line, int index, int pos, int[] groups) {
+            // Greedy, try with the optional part first
+            int end = scanner.match(line, index + 1, pos, groups);
+            if (end >= 0) {
+                return end;
+            }
+            return scanner.match(line, skipTo, pos, groups);
+        }
+    }
+
+    private static class GroupStart extends Element {
+
+        private final int slot;
+
+        GroupStart(Field field) {
+            this.slot = field.ordinal() * 2;
+        }
+
+        @Override
+        int match(LineScanner scanner, String line, int index, int pos, int[] groups) {
+            int previous = groups[slot];
+            groups[slot] = pos;
+
+            int end = scanner.match(line, index + 1, pos, groups);
+            if (end < 0) {
+                groups[slot] = previous;
+            }
+            return end;
+        }
+    }
+
+    private static class GroupEnd extends Element {
+
+        private final int slot;
+
+        GroupEnd(Field field) {
+            this.slot = field.ordinal() * 2 + 1;
+        }
+
+        @Override
+        int match(LineScanner scanner, String line, int index, int pos, int[] groups) {
+            int previous = groups[slot];
+            groups[slot] = pos;
+
+            int end = scanner.match(line, index + 1, pos, groups);
+            if (end < 0) {
+                groups[slot] = previous;
+            }
+            return end;
+        }
+    }
+}
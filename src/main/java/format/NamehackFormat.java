@@ -0,0 +1,45 @@
+package format;
+
+import static format.LineScanner.CharClass.DIGIT;
+import static format.LineScanner.CharClass.NON_SPACE;
+
+/**
+ * Supported Namehack log dialects. Every dialect declares its join and leave lines once, a new dialect is just a new constant.
+ *
+ * Join lines must capture TIMESTAMP, NAME, IP and SLOT, leave lines TIMESTAMP and NAME.
+ */
+public enum NamehackFormat {
+
+    // [2017-06-18T08:51:46.123456] NHACK Added "name" on 127.0.0.1 [12].
+    // [2017-06-18T08:51:46.123456] NACK Deleted "name".
+    IPTABLES(
+            LineScanner.builder()
+                    .literal("[").capture(Field.TIMESTAMP, NON_SPACE, 26, 26)
+                    .literal("] NHACK Added \"").capture(Field.NAME, NON_SPACE, 1, 20)
+                    .literal("\" on ").ip(Field.IP)
+                    .literal(" [").capture(Field.SLOT, DIGIT, 1, 3)
+                    .literal("].")
+                    .build(),
+            LineScanner.builder()
+                    .literal("[").capture(Field.TIMESTAMP, NON_SPACE, 26, 26)
+                    .literal("] NACK Deleted \"").capture(Field.NAME, NON_SPACE, 1, 20)
+                    .literal("\".")
+                    .build()
+    );
+
+    private final LineScanner joinScanner;
+    private final LineScanner leaveScanner;
+
+    NamehackFormat(LineScanner joinScanner, LineScanner leaveScanner) {
+        this.joinScanner = joinScanner;
+        this.leaveScanner = leaveScanner;
+    }
+
+    public LineScanner getJoinScanner() {
+        return joinScanner;
+    }
+
+    public LineScanner getLeaveScanner() {
+        return leaveScanner;
+    }
+}
@@ -0,0 +1,356 @@
+package store;
+
+import analyzer.GhostingIncident;
+import analyzer.UserConnection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Persistent, append-only history of ghosting incidents.
+ *
+ * The incidents are kept as fixed-width records in incidents.dat, numbered in the order they were appended.
+ * Every player name and IP involved in an incident is indexed in names.idx and ips.idx (see PostingIndex),
+ * so the history of one identity can be listed without reading the whole store or re-parsing any logs.
+ *
+ * The records are written before the index blocks. If a run dies in between, the records past the last indexed one are indexed when the store is opened again.
+ *
+ * Incidents are expected in timestamp order and the timestamps must sort lexicographically, as the Namehack ones do.
+ * Only incidents after the last stored one are appended, so running the tool repeatedly over a growing log keeps a single copy of each incident.
+ * This only holds if every run finds the same incidents, so the settings of the first run are kept in settings.txt and runs with other settings are refused.
+ */
+public class IncidentStore implements Closeable {
+
+    private static final String DATA_FILE = "incidents.dat";
+    private static final String NAME_INDEX_FILE = "names.idx";
+    private static final String IP_INDEX_FILE = "ips.idx";
+    private static final String SETTINGS_FILE = "settings.txt";
+
+    private static final int TIMESTAMP_BYTES = 32;
+    private static final int NAME_BYTES = 64;
+    private static final int CONNECTION_BYTES = NAME_BYTES + 4;
+    private static final int RECORD_BYTES = TIMESTAMP_BYTES + 1 + 8 + 2 * CONNECTION_BYTES;
+
+    private static final int WRITE_BATCH = 4096;
+
+    private final File directory;
+    private final RandomAccessFile data;
+    private final PostingIndex nameIndex;
+    private final PostingIndex ipIndex;
+
+    private IncidentStore(File directory) throws IOException {
+        this.directory = directory;
+        this.data = new RandomAccessFile(new File(directory, DATA_FILE), "rw");
+        this.nameIndex = new PostingIndex(new File(directory, NAME_INDEX_FILE));
+        this.ipIndex = new PostingIndex(new File(directory, IP_INDEX_FILE));
+
+        reindex(nameIndex, true);
+        reindex(ipIndex, false);
+    }
+
+    public static IncidentStore open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the incident store directory " + directory.getAbsolutePath());
+        }
+        return new IncidentStore(directory);
+    }
+
+    // A partially written record at the end of the data file is not counted
+    public long size() throws IOException {
+        return data.length() / RECORD_BYTES;
+    }
+
+    /**
+     * @param incidents Incidents of a run, in timestamp order.
+     * @param settings Description of the run settings that decide which incidents are found.
+     * @return Number of incidents that were not stored yet and got appended.
+     * @throws IOException If the stored incidents were found with other settings.
+     */
+    public int append(List<GhostingIncident> incidents, String settings) throws IOException {
+
+        long count = size();
+
+        checkSettings(settings, count);
+
+        // The stored incidents with the last timestamp, as they were written. A run over a longer log can find more of them.
+        String lastTimestamp = null;
+        Map<ByteBuffer, Integer> lastRecords = new HashMap<>();
+
+        for (long record = count - 1; record >= 0; record--) {
+            ByteBuffer bytes = ByteBuffer.wrap(readRecordBytes(record));
+            String timestamp = getPadded(bytes, TIMESTAMP_BYTES);
+            bytes.rewind();
+
+            if (lastTimestamp == null) {
+                lastTimestamp = timestamp;
+            } else if (!lastTimestamp.equals(timestamp)) {
+                break;
+            }
+            lastRecords.merge(bytes, 1, Integer::sum);
+        }
+
+        List<GhostingIncident> fresh = new ArrayList<>();
+
+        for (GhostingIncident incident : incidents) {
+            int order = lastTimestamp == null ? 1 : incident.getTimestamp().compareTo(lastTimestamp);
+
+            if (order > 0) {
+                fresh.add(incident);
+            } else if (order == 0) {
+                ByteBuffer bytes = ByteBuffer.allocate(RECORD_BYTES);
+                writeRecord(bytes, incident);
+                bytes.flip();
+
+                // Every stored copy only stands for one of the incoming ones
+                Integer stored = lastRecords.get(bytes);
+
+                if (stored == null) {
+                    fresh.add(incident);
+                } else if (stored > 1) {
+                    lastRecords.put(bytes, stored - 1);
+                } else {
+                    lastRecords.remove(bytes);
+                }
+            }
+        }
+
+        if (fresh.isEmpty()) {
+            return 0;
+        }
+
+        SortedMap<Long, List<Long>> namePostings = new TreeMap<>();
+        SortedMap<Long, List<Long>> ipPostings = new TreeMap<>();
+
+        // Drop a partially written record before appending
+        data.setLength(count * RECORD_BYTES);
+        data.seek(count * RECORD_BYTES);
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES * WRITE_BATCH);
+        long record = count;
+
+        for (GhostingIncident incident : fresh) {
+            writeRecord(buffer, incident);
+
+            addPostings(namePostings, ipPostings, incident, record);
+
+            record++;
+
+            if (!buffer.hasRemaining()) {
+                data.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+
+        data.write(buffer.array(), 0, buffer.position());
+
+        // The records are written first, so an index never points past the end of the data file
+        nameIndex.appendBlock(namePostings, record);
+        ipIndex.appendBlock(ipPostings, record);
+
+        return fresh.size();
+    }
+
+    /**
+     * @param identity Player name or IP.
+     * @return Every stored incident the identity was involved in, in timestamp order.
+     */
+    public List<GhostingIncident> history(String identity) throws IOException {
+
+        SortedSet<Long> records = new TreeSet<>(nameIndex.lookup(nameKey(identity)));
+
+        long key = ipKey(identity);
+        if (key >= 0) {
+            records.addAll(ipIndex.lookup(key));
+        }
+
+        List<GhostingIncident> found = new ArrayList<>();
+
+        for (long record : records) {
+            GhostingIncident incident = readRecord(record);
+
+            // Different names can share a key, check the actual values
+            for (UserConnection connection : incident.getConnections()) {
+                if (connection.getName().equals(identity) || connection.getIp().equals(identity)) {
+                    found.add(incident);
+                    break;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    // An empty store takes the settings of the run, otherwise they have to match the stored ones
+    private void checkSettings(String settings, long count) throws IOException {
+
+        File file = new File(directory, SETTINGS_FILE);
+
+        if (count > 0 && file.isFile()) {
+            String stored = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+
+            if (!stored.equals(settings)) {
+                throw new IOException("The stored incidents were found with other settings (" + stored + ") than this run (" + settings + "), use another incident store for these settings.");
+            }
+            return;
+        }
+
+        Files.write(file.toPath(), (settings + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Indexes the records appended after the last block of the index
+    private void reindex(PostingIndex index, boolean names) throws IOException {
+
+        long count = size();
+
+        if (index.getIndexedRecords() >= count) {
+            return;
+        }
+
+        SortedMap<Long, List<Long>> postings = new TreeMap<>();
+
+        for (long record = index.getIndexedRecords(); record < count; record++) {
+            GhostingIncident incident = readRecord(record);
+
+            if (names) {
+                addPostings(postings, null, incident, record);
+            } else {
+                addPostings(null, postings, incident, record);
+            }
+        }
+
+        index.appendBlock(postings, count);
+    }
+
+    private static void addPostings(SortedMap<Long, List<Long>> namePostings, SortedMap<Long, List<Long>> ipPostings,
+                                    GhostingIncident incident, long record) {
+
+        for (UserConnection connection : incident.getConnections()) {
+            if (namePostings != null) {
+                addPosting(namePostings, nameKey(connection.getName()), record);
+            }
+
+            // Only IPv4 addresses are stored and looked up
+            long key = ipKey(connection.getIp());
+            if (ipPostings != null && key >= 0) {
+                addPosting(ipPostings, key, record);
+            }
+        }
+    }
+
+    private static void addPosting(SortedMap<Long, List<Long>> postings, long key, long record) {
+        List<Long> records = postings.computeIfAbsent(key, k -> new ArrayList<>());
+
+        // Both connections of a level 0 incident have the same IP
+        if (records.isEmpty() || records.get(records.size() - 1) != record) {
+            records.add(record);
+        }
+    }
+
+    private static void writeRecord(ByteBuffer buffer, GhostingIncident incident) {
+        putPadded(buffer, incident.getTimestamp(), TIMESTAMP_BYTES);
+        buffer.put((byte) incident.getLevel());
+        buffer.putDouble(incident.getConfidence());
+
+        for (UserConnection connection : incident.getConnections()) {
+            putPadded(buffer, connection.getName(), NAME_BYTES);
+            buffer.putInt((int) ipKey(connection.getIp()));
+        }
+    }
+
+    private GhostingIncident readRecord(long record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(readRecordBytes(record));
+
+        String timestamp = getPadded(buffer, TIMESTAMP_BYTES);
+        int level = buffer.get();
+        double confidence = buffer.getDouble();
+
+        UserConnection primary = new UserConnection(getPadded(buffer, NAME_BYTES), ipString(buffer.getInt()), level);
+        UserConnection secondary = new UserConnection(getPadded(buffer, NAME_BYTES), ipString(buffer.getInt()), level);
+
+        return new GhostingIncident(primary, secondary, level, timestamp, confidence);
+    }
+
+    private byte[] readRecordBytes(long record) throws IOException {
+        byte[] bytes = new byte[RECORD_BYTES];
+
+        data.seek(record * RECORD_BYTES);
+        data.readFully(bytes);
+
+        return bytes;
+    }
+
+    // Zero padded UTF-8, cut to the field width
+    private static void putPadded(ByteBuffer buffer, String value, int width) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, width);
+
+        buffer.put(bytes, 0, length);
+        for (int i = length; i < width; i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    private static String getPadded(ByteBuffer buffer, int width) {
+        int start = buffer.position();
+        int length = 0;
+
+        while (length < width && buffer.get(start + length) != 0) {
+            length++;
+        }
+
+        buffer.position(start + width);
+        return new String(buffer.array(), start, length, StandardCharsets.UTF_8);
+    }
+
+    // 64-bit FNV-1a of the UTF-8 name
+    private static long nameKey(String name) {
+        long hash = 0xCBF29CE484222325L;
+
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+
+        return hash;
+    }
+
+    // The IPv4 address as an unsigned 32-bit number, -1 if it is not a dotted IPv4 address
+    private static long ipKey(String ip) {
+        String[] parts = ip.split("\\.");
+        if (parts.length != 4) {
+            return -1;
+        }
+
+        long key = 0;
+        try {
+            for (String part : parts) {
+                int octet = Integer.parseInt(part);
+                if (octet < 0 || octet > 255) {
+                    return -1;
+                }
+                key = (key << 8) | octet;
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        return key;
+    }
+
+    private static String ipString(int ip) {
+        return (ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+        nameIndex.close();
+        ipIndex.close();
+    }
+}
@@ -0,0 +1,443 @@
+package store;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Append-only posting list index, mapping 64-bit keys to the numbers of the incident records they appear in.
+ *
+ * Every append adds one block to the end of the file, so nothing written earlier is ever changed:
+ *      int keyCount, long postingBytes, long indexedRecords
+ *      keyCount directory entries sorted by key: long key, long postingOffset, int postingCount
+ *      postingBytes of postings, every list delta-encoded as unsigned varints
+ *
+ * indexedRecords is the number of incident records covered once the block is written, so records appended to the store
+ * after the last complete block can be found and indexed again. A partially written block at the end is dropped on opening.
+ *
+ * A lookup binary searches the directory of each block and only reads the postings of the matching key. Blocks of similar size
+ * are merged once there are MERGE_FACTOR of them at the end of the file, so there are only a few blocks per size tier and every
+ * posting is rewritten about once per tier, however often the store is appended to. Only the merged blocks at the end are rewritten.
+ */
+public class PostingIndex implements Closeable {
+
+    private static final int BLOCK_HEADER_BYTES = 20;
+    private static final int ENTRY_BYTES = 20;
+
+    private static final int MERGE_FACTOR = 8;
+    // Blocks smaller than this are all in the lowest tier, every next tier holds MERGE_FACTOR times larger blocks
+    private static final long TIER_BYTES = 1 << 16;
+
+    private final File path;
+    private final File mergePath;
+    private final RandomAccessFile file;
+
+    // End offset of every complete block
+    private final List<Long> blockEnds;
+    private long indexedRecords;
+
+    public PostingIndex(File path) throws IOException {
+        this.path = path;
+        this.mergePath = new File(path.getPath() + ".merge");
+        this.file = new RandomAccessFile(path, "rw");
+        this.blockEnds = new ArrayList<>();
+
+        // A merge that was written completely is finished, one that was not is dropped
+        Files.deleteIfExists(new File(mergePath.getPath() + ".tmp").toPath());
+        Files.deleteIfExists(new File(path.getPath() + ".postings.tmp").toPath());
+        if (mergePath.isFile()) {
+            applyMerge();
+        }
+
+        readBlocks();
+    }
+
+    int getBlockCount() {
+        return blockEnds.size();
+    }
+
+    /**
+     * @return Number of incident records covered by the index, every record before it is indexed.
+     */
+    public long getIndexedRecords() {
+        return indexedRecords;
+    }
+
+    /**
+     * @param postings Record numbers by key, every list in ascending order and after the records of the previous blocks.
+     * @param indexedRecords Number of incident records covered once this block is written.
+     */
+    public void appendBlock(SortedMap<Long, List<Long>> postings, long indexedRecords) throws IOException {
+
+        ByteArrayOutputStream postingBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+        DataOutputStream directory = new DataOutputStream(directoryBytes);
+
+        for (SortedMap.Entry<Long, List<Long>> entry : postings.entrySet()) {
+            directory.writeLong(entry.getKey());
+            directory.writeLong(postingBytes.size());
+            directory.writeInt(entry.getValue().size());
+
+            long previous = 0;
+            for (long record : entry.getValue()) {
+                writeVarLong(postingBytes, record - previous);
+                previous = record;
+            }
+        }
+
+        ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_HEADER_BYTES + directoryBytes.size() + postingBytes.size());
+        DataOutputStream block = new DataOutputStream(blockBytes);
+        block.writeInt(postings.size());
+        block.writeLong(postingBytes.size());
+        block.writeLong(indexedRecords);
+        directoryBytes.writeTo(block);
+        postingBytes.writeTo(block);
+
+        file.seek(file.length());
+        file.write(blockBytes.toByteArray());
+
+        this.blockEnds.add(file.length());
+        this.indexedRecords = indexedRecords;
+
+        mergeBlocks();
+    }
+
+    /**
+     * @param key Key to search for.
+     * @return Record numbers of the key from every block, in ascending order.
+     */
+    public List<Long> lookup(long key) throws IOException {
+
+        List<Long> records = new ArrayList<>();
+
+        long position = 0;
+
+        for (int blockIndex = 0; blockIndex < blockEnds.size(); blockIndex++) {
+            file.seek(position);
+            int keyCount = file.readInt();
+            long postingBytes = file.readLong();
+
+            long directoryStart = position + BLOCK_HEADER_BYTES;
+            long postingStart = directoryStart + (long) keyCount * ENTRY_BYTES;
+
+            int low = 0;
+            int high = keyCount - 1;
+
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+
+                file.seek(directoryStart + (long) middle * ENTRY_BYTES);
+                long middleKey = file.readLong();
+
+                if (middleKey < key) {
+                    low = middle + 1;
+                } else if (middleKey > key) {
+                    high = middle - 1;
+                } else {
+                    long offset = file.readLong();
+                    int count = file.readInt();
+
+                    // The postings of this key end where the next key's postings begin
+                    long end = postingBytes;
+                    if (middle + 1 < keyCount) {
+                        file.seek(directoryStart + (long) (middle + 1) * ENTRY_BYTES + 8);
+                        end = file.readLong();
+                    }
+
+                    byte[] bytes = new byte[(int) (end - offset)];
+                    file.seek(postingStart + offset);
+                    file.readFully(bytes);
+
+                    readPostings(new ByteArrayInputStream(bytes), count, records);
+                    break;
+                }
+            }
+
+            position = postingStart + postingBytes;
+        }
+
+        return records;
+    }
+
+    // Counts the complete blocks and cuts off a block that was only partially written
+    private void readBlocks() throws IOException {
+
+        long length = file.length();
+        long position = 0;
+
+        while (position + BLOCK_HEADER_BYTES <= length) {
+            file.seek(position);
+            int keyCount = file.readInt();
+            long postingBytes = file.readLong();
+            long records = file.readLong();
+
+            long blockEnd = position + BLOCK_HEADER_BYTES + (long) keyCount * ENTRY_BYTES + postingBytes;
+
+            if (blockEnd > length) {
+                break;
+            }
+
+            blockEnds.add(blockEnd);
+            indexedRecords = records;
+            position = blockEnd;
+        }
+
+        if (position < length) {
+            file.setLength(position);
+        }
+    }
+
+    private long blockStart(int block) {
+        return block == 0 ? 0 : blockEnds.get(block - 1);
+    }
+
+    private static int tier(long blockBytes) {
+        int tier = 0;
+
+        for (long bytes = blockBytes / TIER_BYTES; bytes > 0; bytes /= MERGE_FACTOR) {
+            tier++;
+        }
+
+        return tier;
+    }
+
+    /**
+     * Merges the blocks at the end of the file that are no larger than the tier of the last block, once there are
+     * MERGE_FACTOR of them. A small block followed by larger ones is merged together with them later on.
+     */
+    private void mergeBlocks() throws IOException {
+
+        while (true) {
+            int last = blockEnds.size() - 1;
+            int tier = tier(blockEnds.get(last) - blockStart(last));
+
+            int first = last;
+            while (first > 0 && tier(blockEnds.get(first - 1) - blockStart(first - 1)) <= tier) {
+                first--;
+            }
+
+            if (last - first + 1 < MERGE_FACTOR) {
+                return;
+            }
+
+            merge(first);
+        }
+    }
+
+    /**
+     * Merges the blocks from the given one to the end into one. The directories are merged in key order and the postings of every key
+     * are streamed from one block after the other, so only the current entry of each block is kept in memory.
+     *
+     * The merged block is written to the .merge file first, together with the offset it replaces the blocks from. Once the file
+     * is complete, the index is cut at the offset and the block is copied there. If that is interrupted, it is done again on opening.
+     */
+    private void merge(int firstBlock) throws IOException {
+
+        File merged = new File(mergePath.getPath() + ".tmp");
+        File mergedPostings = new File(path.getPath() + ".postings.tmp");
+
+        // Later blocks hold later records, so equal keys are taken in block order
+        PriorityQueue<BlockCursor> queue = new PriorityQueue<>(
+                Comparator.comparingLong((BlockCursor cursor) -> cursor.key).thenComparingInt(cursor -> cursor.order));
+        List<BlockCursor> cursors = new ArrayList<>();
+
+        int keyCount = 0;
+        long postingBytes = 0;
+
+        try (DataOutputStream directory = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged)));
+             OutputStream postings = new BufferedOutputStream(new FileOutputStream(mergedPostings))) {
+
+            for (int order = firstBlock; order < blockEnds.size(); order++) {
+                BlockCursor cursor = new BlockCursor(order, blockStart(order));
+                cursors.add(cursor);
+
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+
+            // Room for the offset and the header, written once the sizes are known
+            directory.write(new byte[8 + BLOCK_HEADER_BYTES]);
+
+            while (!queue.isEmpty()) {
+                long key = queue.peek().key;
+                long offset = postingBytes;
+                int count = 0;
+                long previous = 0;
+
+                while (!queue.isEmpty() && queue.peek().key == key) {
+                    BlockCursor cursor = queue.poll();
+
+                    long record = 0;
+                    for (int i = 0; i < cursor.count; i++) {
+                        record += readVarLong(cursor.postings);
+                        postingBytes += writeVarLong(postings, record - previous);
+                        previous = record;
+                    }
+                    count += cursor.count;
+
+                    if (cursor.next()) {
+                        queue.add(cursor);
+                    }
+                }
+
+                directory.writeLong(key);
+                directory.writeLong(offset);
+                directory.writeInt(count);
+                keyCount++;
+            }
+        } finally {
+            for (BlockCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+
+        try (RandomAccessFile out = new RandomAccessFile(merged, "rw");
+             InputStream in = new BufferedInputStream(new FileInputStream(mergedPostings))) {
+
+            out.writeLong(blockStart(firstBlock));
+            out.writeInt(keyCount);
+            out.writeLong(postingBytes);
+            out.writeLong(indexedRecords);
+
+            out.seek(out.length());
+            copy(in, out);
+
+            out.getFD().sync();
+        }
+
+        Files.delete(mergedPostings.toPath());
+        Files.move(merged.toPath(), mergePath.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        applyMerge();
+
+        blockEnds.subList(firstBlock, blockEnds.size()).clear();
+        blockEnds.add(file.length());
+    }
+
+    // Replaces the blocks from the offset in the .merge file with the merged block, can be repeated until the file is deleted
+    private void applyMerge() throws IOException {
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(mergePath))) {
+            long offset = new DataInputStream(in).readLong();
+
+            file.setLength(offset);
+            file.seek(offset);
+            copy(in, file);
+
+            file.getFD().sync();
+        }
+
+        Files.delete(mergePath.toPath());
+    }
+
+    private static void copy(InputStream in, RandomAccessFile out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int read;
+
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    // Reads the directory and the postings of one block sequentially
+    private class BlockCursor implements Closeable {
+
+        private final int order;
+
+        private final DataInputStream directory;
+        private final InputStream postings;
+
+        private int remaining;
+
+        private long key;
+        private int count;
+
+        BlockCursor(int order, long start) throws IOException {
+            file.seek(start);
+            int keyCount = file.readInt();
+            long postingBytes = file.readLong();
+
+            long directoryStart = start + BLOCK_HEADER_BYTES;
+            long postingStart = directoryStart + (long) keyCount * ENTRY_BYTES;
+
+            this.order = order;
+            this.remaining = keyCount;
+
+            this.directory = new DataInputStream(openAt(directoryStart));
+            this.postings = openAt(postingStart);
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+
+            key = directory.readLong();
+            // The postings are read in directory order, their offset is not needed
+            directory.readLong();
+            count = directory.readInt();
+
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            directory.close();
+            postings.close();
+        }
+    }
+
+    private InputStream openAt(long position) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        in.getChannel().position(position);
+        return new BufferedInputStream(in);
+    }
+
+    private static void readPostings(InputStream in, int count, List<Long> records) throws IOException {
+        long previous = 0;
+
+        for (int i = 0; i < count; i++) {
+            previous += readVarLong(in);
+            records.add(previous);
+        }
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+
+        int b;
+        do {
+            b = in.read();
+            if (b == -1) {
+                throw new EOFException("The posting list ended early.");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    // Returns the number of bytes written
+    private static int writeVarLong(OutputStream out, long value) throws IOException {
+        int bytes = 1;
+
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+            bytes++;
+        }
+        out.write((int) value);
+
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,301 @@
+package user;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe user records, that can be updated by many threads and read while they are being updated.
+ *
+ * Every hash, username and IP points to a node of a union-find forest, the root of each tree holds the UserAlias of the whole group.
+ * Writers only lock the roots they are merging or changing, so unrelated groups are updated in parallel.
+ * The UserAlias of a root is replaced, never changed in place, which means readers do not lock at all and always get a consistent group,
+ * at worst one from just before a concurrent merge. The returned UserAlias objects must not be modified.
+ *
+ * A connection record only replaces its group if the IP is new to it, rejoining from a known IP leaves the group as it is.
+ */
+public class ConcurrentUserRecords extends UserRecords {
+
+    // Retries of getAllUserAliases(), before settling for a view that is only consistent per group
+    private static final int SNAPSHOT_ATTEMPTS = 16;
+
+    private static final AtomicLong nodeIds = new AtomicLong();
+
+    private final ConcurrentMap<String, Node> nodesByHash;
+    private final ConcurrentMap<String, Node> nodesByName;
+    private final ConcurrentMap<String, Node> nodesByIP;
+
+    // Writes in progress and writes finished, used to detect if getAllUserAliases() overlapped with a write
+    private final AtomicLong pendingWrites;
+    private final AtomicLong finishedWrites;
+
+    public ConcurrentUserRecords(boolean matchByIP, boolean badNameMatching) {
+        super(matchByIP, badNameMatching);
+
+        this.nodesByHash = new ConcurrentHashMap<>();
+        this.nodesByName = new ConcurrentHashMap<>();
+        this.nodesByIP = new ConcurrentHashMap<>();
+
+        this.notFound = ConcurrentHashMap.newKeySet();
+
+        this.pendingWrites = new AtomicLong();
+        this.finishedWrites = new AtomicLong();
+    }
+
+    private static class Node {
+
+        private final long id;
+
+        // Points to itself on roots
+        private volatile Node parent;
+
+        // Only up to date on roots, replaced on every change
+        private volatile UserAlias alias;
+
+        Node(UserAlias alias) {
+            this.id = nodeIds.incrementAndGet();
+            this.parent = this;
+            this.alias = alias;
+        }
+    }
+
+    @Override
+    public Set<UserAlias> doBadStringMatching(String name) {
+
+        Set<UserAlias> found = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (Node node : findNodesByPrefix(name)) {
+            found.add(find(node).alias);
+        }
+
+        return found;
+    }
+
+    @Override
+    public void addRecord(String hash, String username, String ip, long position) {
+
+        UserAlias newUser = new UserAlias();
+        newUser.addRecord(hash, username, ip);
+        newUser.seenAt(position);
+
+        pendingWrites.incrementAndGet();
+        try {
+            Node node = new Node(newUser);
+
+            node = link(nodesByHash, hash, node);
+            node = link(nodesByName, username, node);
+
+            if (matchByIP && !hubs.contains(ip)) {
+                link(nodesByIP, ip, node);
+            }
+        } finally {
+            finishWrite();
+        }
+    }
+
+    @Override
+    public void addConnectionRecord(String username, String ip, long position) {
+
+        pendingWrites.incrementAndGet();
+        try {
+            Node node = nodesByName.get(username);
+
+            // Read the doBadStringMatching(..) method comment for more information
+            if (node == null && badNameMatching) {
+                for (Node similarNode : findNodesByPrefix(username)) {
+                    node = node == null ? similarNode : union(node, similarNode);
+                }
+
+                if (node != null) {
+                    // Make sure this name is added too
+                    node = update(node, user -> user.addAlias(username));
+                    node = link(nodesByName, username, node);
+                }
+            }
+
+            if (node == null) {
+                notFound.add(username);
+
+                // Same as in UserRecords, the limited user data is only kept if the references are updated
+                if (!matchByIP && !badNameMatching) {
+                    return;
+                }
+
+                UserAlias user = new UserAlias();
+                user.addAlias(username);
+                user.addIP(ip);
+                user.seenAt(position);
+                node = link(nodesByName, username, new Node(user));
+            }
+
+            // Rejoining from a known IP is the common case and needs no change at all
+            if (!find(node).alias.hasIP(ip)) {
+                node = update(node, user -> user.addIP(ip));
+            }
+
+            if (matchByIP && !hubs.contains(ip)) {
+                link(nodesByIP, ip, node);
+            }
+        } finally {
+            finishWrite();
+        }
+    }
+
+    /**
+     * Groups that were merged while the aliases were collected would show up twice, so the collection is retried until no write overlapped with it.
+     * If the records are continuously being written to, after a number of attempts every group is still consistent on its own, but merges that
+     * happened during the call might be seen partially.
+     */
+    @Override
+    public Collection<UserAlias> getAllUserAliases() {
+
+        List<UserAlias> aliases = null;
+
+        for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            long finished = finishedWrites.get();
+
+            if (pendingWrites.get() == 0) {
+                aliases = collectAliases();
+
+                if (pendingWrites.get() == 0 && finishedWrites.get() == finished) {
+                    return aliases;
+                }
+            }
+
+            Thread.yield();
+        }
+
+        return aliases != null ? aliases : collectAliases();
+    }
+
+    @Override
+    public Iterator<UserAlias> groupIterator() {
+        return getAllUserAliases().iterator();
+    }
+
+    @Override
+    public UserAlias findByName(String name) {
+        return aliasOf(nodesByName.get(name));
+    }
+
+    @Override
+    public UserAlias findByHash(String hash) {
+        return aliasOf(nodesByHash.get(hash));
+    }
+
+    @Override
+    public UserAlias findByIP(String ip) {
+        return aliasOf(nodesByIP.get(ip));
+    }
+
+    private List<UserAlias> collectAliases() {
+
+        // Nodes are compared by identity, so the contents of the groups are never hashed
+        Set<Node> roots = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<UserAlias> aliases = new ArrayList<>();
+
+        for (Node node : nodesByName.values()) {
+            Node root = find(node);
+
+            if (roots.add(root)) {
+                aliases.add(root.alias);
+            }
+        }
+
+        return aliases;
+    }
+
+    private List<Node> findNodesByPrefix(String name) {
+
+        List<Node> found = new ArrayList<>();
+
+        for (Map.Entry<String, Node> entry : nodesByName.entrySet()) {
+            if (entry.getKey().startsWith(name)) {
+                found.add(entry.getValue());
+            }
+        }
+
+        return found;
+    }
+
+    private static UserAlias aliasOf(Node node) {
+        return node == null ? null : find(node).alias;
+    }
+
+    private static Node find(Node node) {
+        Node parent;
+
+        while ((parent = node.parent) != node) {
+            // Path halving, any ancestor is a valid parent, so this does not need to be atomic
+            Node grandParent = parent.parent;
+            if (grandParent != parent) {
+                node.parent = grandParent;
+            }
+            node = grandParent;
+        }
+
+        return node;
+    }
+
+    // Maps the key to the node, or merges the node with the group the key already belongs to
+    private static Node link(ConcurrentMap<String, Node> nodes, String key, Node node) {
+        Node existing = nodes.putIfAbsent(key, node);
+        return existing == null ? node : union(existing, node);
+    }
+
+    private static Node union(Node a, Node b) {
+        while (true) {
+            Node rootA = find(a);
+            Node rootB = find(b);
+
+            if (rootA == rootB) {
+                return rootA;
+            }
+
+            // Always lock in the same order, the older node stays the root
+            Node first = rootA.id < rootB.id ? rootA : rootB;
+            Node second = first == rootA ? rootB : rootA;
+
+            synchronized (first) {
+                synchronized (second) {
+                    // Another writer merged one of them in the meantime
+                    if (first.parent != first || second.parent != second) {
+                        continue;
+                    }
+
+                    // Publish the joined group before linking, so readers never see a group shrink
+                    first.alias = new UserAlias().join(first.alias).join(second.alias);
+                    second.parent = first;
+
+                    return first;
+                }
+            }
+        }
+    }
+
+    // Replaces the alias of the node's group with a changed copy
+    private static Node update(Node node, Consumer<UserAlias> change) {
+        while (true) {
+            Node root = find(node);
+
+            synchronized (root) {
+                if (root.parent != root) {
+                    continue;
+                }
+
+                UserAlias copy = new UserAlias().join(root.alias);
+                change.accept(copy);
+                root.alias = copy;
+
+                return root;
+            }
+        }
+    }
+
+    private void finishWrite() {
+        finishedWrites.incrementAndGet();
+        pendingWrites.decrementAndGet();
+    }
+}
@@ -0,0 +1,224 @@
+package user;
+
+import java.util.*;
+
+/**
+ * Links strong user groups whose IP sets are similar, instead of requiring a single shared IP like the weak records do.
+ *
+ * Every group gets a MinHash signature of its IP set (optionally also of its /24 subnets), hub IPs left out. The signature is split into bands
+ * and groups with an identical band end up in the same bucket, so only the groups sharing a bucket are compared,
+ * which is near-linear instead of comparing all pairs. The exact Jaccard similarity of the candidates is used as the confidence of a link.
+ *
+ * The number of bands and rows is derived from the threshold: the longest bands, which still put a pair right at the threshold
+ * into a shared bucket with a probability of TARGET_RECALL, without the signature growing over MAX_SIGNATURE_SIZE.
+ */
+public class FuzzyLinks {
+
+    private static final double TARGET_RECALL = 0.99;
+    private static final int MAX_ROWS = 8;
+    private static final int MAX_SIGNATURE_SIZE = 256;
+
+    // Buckets this large come from groups that are practically identical, comparing all of them would be quadratic
+    private static final int MAX_BUCKET_SIZE = 1000;
+
+    private final Map<UserAlias, Integer> groups;
+    private final Map<Long, Double> similarities;
+
+    // Buckets that were too large to compare and the groups in them
+    private int skippedBuckets;
+    private int skippedGroups;
+
+    private FuzzyLinks() {
+        // Groups are looked up by identity, so their contents are never hashed
+        this.groups = new IdentityHashMap<>();
+        this.similarities = new HashMap<>();
+    }
+
+    /**
+     * @param users Strong user groups.
+     * @param threshold Minimum Jaccard similarity of the IP sets, between 0 and 1.
+     * @param subnets Whether the /24 subnets of the IPs are also compared.
+     * @param hubs Shared IPs that are left out of the comparison.
+     * @return Links between the groups above the threshold.
+     */
+    public static FuzzyLinks build(Collection<UserAlias> users, double threshold, boolean subnets, Set<String> hubs) {
+
+        FuzzyLinks links = new FuzzyLinks();
+
+        int rows = rows(threshold);
+        int bands = bands(threshold, rows);
+
+        List<Set<String>> tokenSets = new ArrayList<>();
+        Map<Long, List<Integer>> buckets = new HashMap<>();
+
+        for (UserAlias user : users) {
+            Set<String> tokens = tokens(user, subnets, hubs);
+            if (tokens.isEmpty()) {
+                continue;
+            }
+
+            int group = tokenSets.size();
+            links.groups.put(user, group);
+            tokenSets.add(tokens);
+
+            long[] signature = signature(tokens, bands * rows);
+
+            for (int band = 0; band < bands; band++) {
+                long key = band;
+                for (int row = 0; row < rows; row++) {
+                    key = key * 31 + signature[band * rows + row];
+                }
+
+                buckets.computeIfAbsent(mix(key), k -> new ArrayList<>()).add(group);
+            }
+        }
+
+        Set<Long> compared = new HashSet<>();
+
+        for (List<Integer> bucket : buckets.values()) {
+            if (bucket.size() < 2) {
+                continue;
+            }
+
+            if (bucket.size() > MAX_BUCKET_SIZE) {
+                links.skippedBuckets++;
+                links.skippedGroups += bucket.size();
+                continue;
+            }
+
+            for (int i = 0; i < bucket.size(); i++) {
+                for (int j = i + 1; j < bucket.size(); j++) {
+                    long pair = pairKey(bucket.get(i), bucket.get(j));
+
+                    if (!compared.add(pair)) {
+                        continue;
+                    }
+
+                    double similarity = jaccard(tokenSets.get(bucket.get(i)), tokenSets.get(bucket.get(j)));
+
+                    if (similarity >= threshold) {
+                        links.similarities.put(pair, similarity);
+                    }
+                }
+            }
+        }
+
+        return links;
+    }
+
+    /**
+     * @return Jaccard similarity of the two groups' IP sets, or -1 if they are not linked.
+     */
+    public double similarity(UserAlias a, UserAlias b) {
+        Integer groupA = groups.get(a);
+        Integer groupB = groups.get(b);
+
+        if (groupA == null || groupB == null || groupA.equals(groupB)) {
+            return -1;
+        }
+
+        return similarities.getOrDefault(pairKey(groupA, groupB), -1.0);
+    }
+
+    public int size() {
+        return similarities.size();
+    }
+
+    public int getSkippedBuckets() {
+        return skippedBuckets;
+    }
+
+    public int getSkippedGroups() {
+        return skippedGroups;
+    }
+
+    // Longest bands, for which the signature stays within MAX_SIGNATURE_SIZE, single rows for very low thresholds
+    private static int rows(double threshold) {
+        for (int rows = MAX_ROWS; rows > 1; rows--) {
+            if (bandsNeeded(threshold, rows) * rows <= MAX_SIGNATURE_SIZE) {
+                return rows;
+            }
+        }
+
+        return 1;
+    }
+
+    // Below a threshold of about 0.02 even single rows would need a larger signature, the recall drops from there on
+    private static int bands(double threshold, int rows) {
+        return (int) Math.min(bandsNeeded(threshold, rows), MAX_SIGNATURE_SIZE / rows);
+    }
+
+    // A pair at the threshold agrees on a whole band with a probability of threshold^rows
+    private static double bandsNeeded(double threshold, int rows) {
+        double bandMatch = Math.pow(threshold, rows);
+
+        if (bandMatch >= 1) {
+            return 1;
+        }
+
+        return Math.max(1, Math.ceil(Math.log(1 - TARGET_RECALL) / Math.log(1 - bandMatch)));
+    }
+
+    private static Set<String> tokens(UserAlias user, boolean subnets, Set<String> hubs) {
+        Set<String> tokens = user.getIPs();
+        tokens.removeAll(hubs);
+
+        if (subnets) {
+            for (String ip : new ArrayList<>(tokens)) {
+                int lastDot = ip.lastIndexOf('.');
+                if (lastDot > 0) {
+                    tokens.add(ip.substring(0, lastDot) + ".0/24");
+                }
+            }
+        }
+
+        return tokens;
+    }
+
+    private static long[] signature(Set<String> tokens, int size) {
+        long[] signature = new long[size];
+        Arrays.fill(signature, Long.MAX_VALUE);
+
+        for (String token : tokens) {
+            long base = mix(token.hashCode());
+
+            for (int i = 0; i < size; i++) {
+                // A differently seeded hash for every row of the signature
+                long hash = mix(base ^ ((i + 1) * 0x9E3779B97F4A7C15L));
+                if (hash < signature[i]) {
+                    signature[i] = hash;
+                }
+            }
+        }
+
+        return signature;
+    }
+
+    private static double jaccard(Set<String> a, Set<String> b) {
+        Set<String> smaller = a.size() < b.size() ? a : b;
+        Set<String> larger = smaller == a ? b : a;
+
+        int shared = 0;
+        for (String token : smaller) {
+            if (larger.contains(token)) {
+                shared++;
+            }
+        }
+
+        return (double) shared / (a.size() + b.size() - shared);
+    }
+
+    private static long pairKey(int a, int b) {
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    // Finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,26 @@
+package user;
+
+import java.util.Comparator;
+
+/**
+ * Orders of the exported user records. Every group has a distinct first-seen position in the logs, so both orders are total
+ * and do not depend on the number of threads the records were built with.
+ */
+public enum GroupOrder {
+
+    // Most names first, groups of the same size in the order they were first seen
+    SIZE(Comparator.comparingInt(UserAlias::size).reversed().thenComparingLong(UserAlias::getFirstSeen)),
+
+    // In the order the groups were first seen in the logs
+    FIRST_SEEN(Comparator.comparingLong(UserAlias::getFirstSeen));
+
+    private final Comparator<UserAlias> comparator;
+
+    GroupOrder(Comparator<UserAlias> comparator) {
+        this.comparator = comparator;
+    }
+
+    public Comparator<UserAlias> getComparator() {
+        return comparator;
+    }
+}
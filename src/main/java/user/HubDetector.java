@@ -0,0 +1,202 @@
+package user;
+
+import config.GAConfig;
+import format.Field;
+import format.LineScanner;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Finds shared IPs (internet cafes, LAN events, large NAT gateways) that are linked to a large number of distinct CD hashes or usernames.
+ * Joining user records through such an IP would collapse hundreds of unrelated players into a single weak user.
+ *
+ * The first pass approximates the number of distinct hashes and names per IP in a count-min sketch. A Bloom filter of the (IP, hash)
+ * and (IP, name) pairs already seen makes sure only the first record of every pair is counted, so an IP that keeps rejoining from
+ * the same account does not grow its count. Only the IPs whose estimate is over the candidate limit are counted exactly in the second pass.
+ *
+ * The sketch itself never underestimates, but a false positive of the Bloom filter skips a new pair. The candidate limit is
+ * half the threshold, which the few skipped pairs at the expected false positive rate stay far from.
+ */
+public class HubDetector {
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH_BITS = 16;
+
+    // Odd multipliers, one for every sketch row
+    private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    // 8 MB of bits, with 3 probes this stays around 1% false positives up to about 5 million distinct pairs
+    private static final int BLOOM_BITS = 26;
+    private static final int BLOOM_PROBES = 3;
+
+    private final int threshold;
+
+    private final int[][] sketch;
+    private final long[] seenPairs;
+
+    private Map<String, Set<String>> hashesByIP;
+    private Map<String, Set<String>> namesByIP;
+
+    public HubDetector(int threshold) {
+        this.threshold = threshold;
+        this.sketch = new int[SKETCH_DEPTH][1 << SKETCH_WIDTH_BITS];
+        this.seenPairs = new long[1 << (BLOOM_BITS - 6)];
+        this.hashesByIP = new HashMap<>();
+        this.namesByIP = new HashMap<>();
+    }
+
+    /**
+     * @param config Config with the CD hash and Namehack log files.
+     * @param threshold Maximum number of distinct hashes or names an IP can be linked to before it is considered a hub.
+     * @return IPs linked to more than threshold distinct hashes or names, sorted.
+     */
+    public static SortedSet<String> detect(GAConfig config, int threshold) throws RecordBuildingException {
+
+        HubDetector detector = new HubDetector(threshold);
+
+        // First pass, approximate distinct hash and name count per IP
+        detector.scan(config, false);
+
+        // Second pass, exact distinct hashes and names for the candidates only
+        detector.scan(config, true);
+
+        return detector.getHubs();
+    }
+
+    private void scan(GAConfig config, boolean exact) throws RecordBuildingException {
+
+        try (BufferedReader br = new BufferedReader(new FileReader(config.getCdHashFile()))) {
+
+            LineScanner scanner = config.getCdHashFormat().getRecordScanner();
+
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = scanner.scan(line);
+
+                if (fields != null) {
+                    add(fields[Field.IP.ordinal()], fields[Field.HASH.ordinal()], fields[Field.NAME.ordinal()], exact);
+                }
+            }
+
+        } catch (IOException e) {
+            throw new RecordBuildingException("An error occurred while the user record map was being built: " + e.getMessage());
+        }
+
+        try (BufferedReader br = new BufferedReader(new FileReader(config.getConnectionFile()))) {
+
+            LineScanner scanner = config.getNamehackFormat().getJoinScanner();
+
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = scanner.scan(line);
+
+                if (fields != null) {
+                    add(fields[Field.IP.ordinal()], null, fields[Field.NAME.ordinal()], exact);
+                }
+            }
+
+        } catch (IOException e) {
+            throw new RecordBuildingException("An error occurred while the user record map was being built: " + e.getMessage());
+        }
+    }
+
+    private void add(String ip, String hash, String name, boolean exact) {
+
+        if (!exact) {
+            if (hash != null && firstSeen(ip, 'h', hash)) {
+                count(ip);
+            }
+
+            if (firstSeen(ip, 'n', name)) {
+                count(ip);
+            }
+            return;
+        }
+
+        if (estimate(ip) <= threshold / 2) {
+            return;
+        }
+
+        if (hash != null) {
+            hashesByIP.computeIfAbsent(ip, k -> new HashSet<>()).add(hash);
+        }
+
+        namesByIP.computeIfAbsent(ip, k -> new HashSet<>()).add(name);
+    }
+
+    private void count(String ip) {
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            sketch[row][bucket(ip, row)]++;
+        }
+    }
+
+    // Adds the pair to the Bloom filter, false if it was (probably) already there
+    private boolean firstSeen(String ip, char type, String value) {
+        long hash = mix(((long) ip.hashCode() << 32) ^ (type * 0x9E3779B97F4A7C15L) ^ (value.hashCode() & 0xFFFFFFFFL));
+
+        // Double hashing, the probes are derived from the two halves of one 64-bit hash
+        int first = (int) hash;
+        int second = (int) (hash >>> 32) | 1;
+
+        boolean added = false;
+
+        for (int probe = 0; probe < BLOOM_PROBES; probe++) {
+            int bit = (first + probe * second) >>> (32 - BLOOM_BITS);
+            long mask = 1L << bit;
+
+            if ((seenPairs[bit >>> 6] & mask) == 0) {
+                seenPairs[bit >>> 6] |= mask;
+                added = true;
+            }
+        }
+
+        return added;
+    }
+
+    // Finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int estimate(String ip) {
+        int min = Integer.MAX_VALUE;
+
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            min = Math.min(min, sketch[row][bucket(ip, row)]);
+        }
+
+        return min;
+    }
+
+    private static int bucket(String ip, int row) {
+        // Multiplicative hashing, the high bits of the product are the best mixed
+        return (ip.hashCode() * SEEDS[row]) >>> (32 - SKETCH_WIDTH_BITS);
+    }
+
+    private SortedSet<String> getHubs() {
+
+        SortedSet<String> hubs = new TreeSet<>();
+
+        for (Map.Entry<String, Set<String>> entry : hashesByIP.entrySet()) {
+            if (entry.getValue().size() > threshold) {
+                hubs.add(entry.getKey());
+            }
+        }
+
+        for (Map.Entry<String, Set<String>> entry : namesByIP.entrySet()) {
+            if (entry.getValue().size() > threshold) {
+                hubs.add(entry.getKey());
+            }
+        }
+
+        return hubs;
+    }
+}
@@ -11,10 +11,15 @@ public class UserAlias {
     private Set<String> aliases;
     private Set<String> IPs;
 
+    // Earliest log position of any record in the group, the CD hash log lines come before the Namehack log lines
+    private long firstSeen;
+
     public UserAlias() {
         this.hashes = new HashSet<>();
         this.aliases = new HashSet<>();
         this.IPs = new HashSet<>();
+
+        this.firstSeen = Long.MAX_VALUE;
     }
 
     public void addRecord(String hash, String name, String ip) {
@@ -36,6 +41,23 @@ public class UserAlias {
         return new HashSet<>(IPs);
     }
 
+    public boolean hasIP(String ip) {
+        return IPs.contains(ip);
+    }
+
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public void seenAt(long position) {
+        firstSeen = Math.min(firstSeen, position);
+    }
+
+    // Number of names in the group
+    public int size() {
+        return aliases.size();
+    }
+
     public void addHash(String hash) {
         hashes.add(hash);
     }
@@ -50,7 +72,8 @@ public class UserAlias {
 
     // Return this object for method chaining
     public UserAlias join(UserAlias other) {
-        if (other == null || this.equals(other)) {
+        // Compared by identity, equals(..) would compare all the contents on every join
+        if (other == null || this == other) {
             return this;
         }
 
@@ -58,6 +81,8 @@ public class UserAlias {
         aliases.addAll(other.aliases);
         IPs.addAll(other.IPs);
 
+        firstSeen = Math.min(firstSeen, other.firstSeen);
+
         return this;
     }
 
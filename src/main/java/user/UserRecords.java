@@ -1,17 +1,25 @@
 package user;
 
 import config.GAConfig;
+import format.Field;
+import format.LineScanner;
+import format.NamehackFormat;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class UserRecords {
 
+    // CD hash log lines added in parallel at a time
+    private static final int PARALLEL_BATCH = 1 << 14;
+
     /*
         User alias object is made up of a set of hashes, usernames and IPs
         One username could have multiple hashes and one hash could have multiple names linked to it, so it is a n to m mapping
@@ -20,15 +28,21 @@ public class UserRecords {
     // Check whether we want to join user records by IP or not (might be overkill in some instances, i.e. dynamic IP)
     // On the other hand it might help against people who spoof HWID's or otherwise connect from the same IP
     // When this is true, the user records will also be updated as the namehack log is parsed
-    private final boolean matchByIP;
+    protected final boolean matchByIP;
 
-    private final boolean badNameMatching;
+    protected final boolean badNameMatching;
 
     private Map<String, UserAlias> usersByHash;
     private Map<String, UserAlias> usersByName;
     private Map<String, UserAlias> usersByIP;
 
-    private Set<String> notFound;
+    protected Set<String> notFound;
+
+    // Shared IPs linked to too many distinct hashes or names, these are never used for joining by IP
+    protected Set<String> hubs;
+
+    // Strong groups with similar IP sets, only built for strong records when enabled
+    private FuzzyLinks fuzzyLinks;
 
     public UserRecords(boolean matchByIP, boolean badNameMatching) {
         this.matchByIP = matchByIP;
@@ -40,6 +54,7 @@ public class UserRecords {
         this.usersByIP = new HashMap<>();
 
         this.notFound = new HashSet<>();
+        this.hubs = new HashSet<>();
     }
 
     /**
@@ -57,7 +72,7 @@ public class UserRecords {
      */
     public Set<UserAlias> doBadStringMatching(String name) {
 
-        Set<UserAlias> found = new HashSet<>();
+        Set<UserAlias> found = Collections.newSetFromMap(new IdentityHashMap<>());
 
         for (String key : usersByName.keySet()) {
             if (key.startsWith(name)) {
@@ -68,11 +83,15 @@ public class UserRecords {
         return found;
     }
 
-    public void addRecord (String hash, String username, String ip) {
+    /**
+     * @param position Line number of the record in the CD hash log, which makes up the first-seen order of the groups.
+     */
+    public void addRecord (String hash, String username, String ip, long position) {
 
         // Create new user object
         UserAlias newUser = new UserAlias();
         newUser.addRecord(hash, username, ip);
+        newUser.seenAt(position);
 
         // Join the new object with existing records, that have a correlation with this one
         newUser.join(usersByHash.get(hash))
@@ -84,7 +103,9 @@ public class UserRecords {
 
             // This map is only relevant when we do want to match join stuff by IP and later use that map
             for (String uIP : newUser.getIPs()) {
-                usersByIP.put(uIP, newUser);
+                if (!hubs.contains(uIP)) {
+                    usersByIP.put(uIP, newUser);
+                }
             }
         }
 
@@ -98,7 +119,10 @@ public class UserRecords {
         }
     }
 
-    public void addConnectionRecord(String username, String ip) {
+    /**
+     * @param position Position of the record after all CD hash log lines, only used if the name was not found.
+     */
+    public void addConnectionRecord(String username, String ip, long position) {
 
         UserAlias user = usersByName.get(username);
 
@@ -124,6 +148,7 @@ public class UserRecords {
             // Even though the user was not found, lets retain the limited user data without the CD hash
             user = new UserAlias();
             user.addAlias(username);
+            user.seenAt(position);
         }
 
         user.addIP(ip);
@@ -145,37 +170,72 @@ public class UserRecords {
             }
 
             for (String uIP : user.getIPs()) {
-                usersByIP.put(uIP, user);
+                if (!hubs.contains(uIP)) {
+                    usersByIP.put(uIP, user);
+                }
             }
         }
 
     }
 
-    public static UserRecords build(GAConfig config, boolean joinByIP) throws RecordBuildingException {
+    /**
+     * @param hubs Shared IPs found by HubDetector, never used for joining by IP and left out of the fuzzy matching.
+     */
+    public static UserRecords build(GAConfig config, boolean joinByIP, Set<String> hubs) throws RecordBuildingException {
 
         /*
-            Regex: "\[([^\s]{8,10}\s[^\s]{5})]\s([a-z0-9]{32})\s([^\s]{1,6})?\s([^\s]{1,20})\s((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?))"
-            Capture groups:
-                1) Timestamp (first join)
-                2) Hash
-                3) Tag (optional)
-                4) Username
-                5) IP
-                6-9) IP sub-parts
+            The record lines are declared by the configured CdHashFormat, which captures:
+                Hash
+                Tag (optional)
+                Username
+                IP
          */
 
-        UserRecords records = new UserRecords(joinByIP, config.getBadStringMatching());
+        // With multiple threads the CD hash log is read in parallel, into records that can be safely updated concurrently
+        UserRecords records = config.getThreads() > 1
+                ? new ConcurrentUserRecords(joinByIP, config.getBadStringMatching())
+                : new UserRecords(joinByIP, config.getBadStringMatching());
 
-        try (BufferedReader br = new BufferedReader(new FileReader(config.getCdHashFile()))) {
+        records.hubs = hubs;
 
-            Pattern pat = Pattern.compile("\\[([^\\s]{8,10}\\s[^\\s]{5})]\\s([a-z0-9]{32})\\s([^\\s]{1,6})?\\s([^\\s]{1,20})\\s((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?))");
+        long lineCount = 0;
 
-            String line;
-            while ((line = br.readLine()) != null) {
-                Matcher matcher = pat.matcher(line);
+        try (BufferedReader br = new BufferedReader(new FileReader(config.getCdHashFile()))) {
 
-                if (matcher.find() && matcher.groupCount() >= 5) {
-                    records.addRecord(matcher.group(2), matcher.group(4), matcher.group(5));
+            LineScanner scanner = config.getCdHashFormat().getRecordScanner();
+
+            if (config.getThreads() > 1) {
+                // The resulting groups do not depend on the order the records are added in, the line numbers keep the first-seen order
+                ForkJoinPool pool = new ForkJoinPool(config.getThreads());
+
+                try {
+                    List<String> batch = new ArrayList<>(PARALLEL_BATCH);
+
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        batch.add(line);
+
+                        if (batch.size() == PARALLEL_BATCH) {
+                            records.addRecordLines(pool, scanner, batch, lineCount);
+                            lineCount += batch.size();
+                            batch = new ArrayList<>(PARALLEL_BATCH);
+                        }
+                    }
+
+                    records.addRecordLines(pool, scanner, batch, lineCount);
+                    lineCount += batch.size();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RecordBuildingException("The user record map building was interrupted.");
+                } catch (ExecutionException e) {
+                    throw new RecordBuildingException("An error occurred while the user record map was being built: " + e.getCause().getMessage());
+                } finally {
+                    pool.shutdown();
+                }
+            } else {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    records.addRecordLine(scanner, line, lineCount++);
                 }
             }
 
@@ -183,39 +243,54 @@ public class UserRecords {
             throw new RecordBuildingException("An error occurred while the user record map was being built: " + e.getMessage());
         }
 
-        records.updateUserRecordsWithConnections(config.getConnectionFile(), joinByIP);
+        records.updateUserRecordsWithConnections(config.getConnectionFile(), config.getNamehackFormat(), lineCount);
+
+        if (!joinByIP && config.getFuzzyThreshold() > 0) {
+            records.fuzzyLinks = FuzzyLinks.build(records.getAllUserAliases(), config.getFuzzyThreshold(), config.getFuzzySubnets(), records.hubs);
+        }
 
         return records;
     }
 
-    private UserRecords updateUserRecordsWithConnections(File connectionFile, boolean joinByIP) throws RecordBuildingException {
+    private void addRecordLine(LineScanner scanner, String line, long position) {
+        String[] fields = scanner.scan(line);
+
+        if (fields != null) {
+            addRecord(fields[Field.HASH.ordinal()], fields[Field.NAME.ordinal()], fields[Field.IP.ordinal()], position);
+        }
+    }
+
+    private void addRecordLines(ForkJoinPool pool, LineScanner scanner, List<String> batch, long firstPosition) throws InterruptedException, ExecutionException {
+        pool.submit(() -> IntStream.range(0, batch.size()).parallel()
+                .forEach(i -> addRecordLine(scanner, batch.get(i), firstPosition + i))).get();
+    }
+
+    /**
+     * @param firstPosition Number of CD hash log lines, the connection records come after them in the first-seen order.
+     */
+    private UserRecords updateUserRecordsWithConnections(File connectionFile, NamehackFormat format, long firstPosition) throws RecordBuildingException {
 
         /*
-            Joining regex: "\[([^\s]{26})]\sNHACK\sAdded\s"([^\s]{1,16})"\son\s((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?))\s\[([0-9]{1,3})]\."
-            Groups:
-                1) Timestamp
-                2) Name
-                3) IP
-                4-7) IP sub-parts
-                8) nth player on the server (needed to check for server crashes)
-
-            Leaving regex: \[([^\s]{26})]\sNACK\sDeleted\s"([^\s]{1,20})"\.
-            Groups:
-                1) Timestamp
-                2) Name
+            Only the join lines of the configured NamehackFormat are relevant here, they capture:
+                Timestamp
+                Name
+                IP
+                nth player on the server
          */
 
         try (BufferedReader br = new BufferedReader(new FileReader(connectionFile))) {
 
-            Pattern pat = Pattern.compile("\\[([^\\s]{26})]\\sNHACK\\sAdded\\s\"([^\\s]{1,20})\"\\son\\s((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?))\\s\\[([0-9]{1,3})]\\.");
+            long position = firstPosition;
 
             String line;
             while ((line = br.readLine()) != null) {
-                Matcher matcher = pat.matcher(line);
+                String[] fields = format.getJoinScanner().scan(line);
 
-                if (matcher.find() && matcher.groupCount() >= 4) {
-                    this.addConnectionRecord(matcher.group(2), matcher.group(3));
+                if (fields != null) {
+                    this.addConnectionRecord(fields[Field.NAME.ordinal()], fields[Field.IP.ordinal()], position);
                 }
+
+                position++;
             }
 
         } catch (IOException e) {
@@ -227,24 +302,91 @@ public class UserRecords {
 
     @Override
     public String toString() {
+        return getOrderedUserAliases(GroupOrder.FIRST_SEEN, 0).parallelStream()
+                .map(UserAlias::toString)
+                .collect(Collectors.joining(",\n"));
+    }
 
-        Set<String> userStrings = new HashSet<>();
-        for (UserAlias user : usersByName.values()) {
-            userStrings.add(user.toString());
-        }
+    public Collection<UserAlias> getAllUserAliases() {
+
+        List<UserAlias> unique = new ArrayList<>();
+        groupIterator().forEachRemaining(unique::add);
 
-        return String.join(",\n", userStrings);
+        return unique;
     }
 
-    public Collection<UserAlias> getAllUserAliases() {
+    /**
+     * Every name points to the group it is in, so the groups are visited through the names and each one is returned once, when it is first reached.
+     * The groups are compared by identity, so their contents are never hashed.
+     *
+     * @return Lazy iterator over every user group.
+     */
+    public Iterator<UserAlias> groupIterator() {
+
+        Set<UserAlias> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Iterator<UserAlias> users = usersByName.values().iterator();
+
+        return new Iterator<UserAlias>() {
 
-        Set<UserAlias> unique = new HashSet<>();
+            private UserAlias next;
 
-        for (UserAlias user : usersByName.values()) {
-            unique.add(user);
+            @Override
+            public boolean hasNext() {
+                while (next == null && users.hasNext()) {
+                    UserAlias user = users.next();
+
+                    if (visited.add(user)) {
+                        next = user;
+                    }
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public UserAlias next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                UserAlias user = next;
+                next = null;
+
+                return user;
+            }
+        };
+    }
+
+    /**
+     * @param order Order of the returned groups.
+     * @param top Maximum number of groups returned, the first ones in the given order. 0 returns every group.
+     * @return User groups in the given order.
+     */
+    public List<UserAlias> getOrderedUserAliases(GroupOrder order, int top) {
+
+        if (top > 0) {
+            // Bounded heap, its head is the group that would be dropped next
+            PriorityQueue<UserAlias> best = new PriorityQueue<>(order.getComparator().reversed());
+
+            Iterator<UserAlias> groups = groupIterator();
+            while (groups.hasNext()) {
+                best.add(groups.next());
+
+                if (best.size() > top) {
+                    best.poll();
+                }
+            }
+
+            List<UserAlias> result = new ArrayList<>(best);
+            result.sort(order.getComparator());
+
+            return result;
         }
 
-        return unique;
+        UserAlias[] groups = getAllUserAliases().toArray(new UserAlias[0]);
+        Arrays.parallelSort(groups, order.getComparator());
+
+        return Arrays.asList(groups);
     }
 
     public void outWarnings() {
@@ -255,11 +397,24 @@ public class UserRecords {
             if (!badNameMatching) {
                 System.err.println("If you are using logs before or including PR v1.4.11.0, then you might want to enable bad name string checking (-b or --bad-strings). Check --help for more info.");
             }
-            notFound = new HashSet<>();
+            notFound.clear();
+        }
+
+        if (fuzzyLinks != null && fuzzyLinks.getSkippedBuckets() > 0) {
+            System.err.println("Warning: " + fuzzyLinks.getSkippedBuckets() + " MinHash buckets with too many similar user records (" + fuzzyLinks.getSkippedGroups() +
+                    " in total) were not compared, so links between those records might be missing. They usually share an IP, which --hub-threshold (-x) can exclude.");
         }
 
     }
 
+    public FuzzyLinks getFuzzyLinks() {
+        return fuzzyLinks;
+    }
+
+    public Set<String> getHubs() {
+        return Collections.unmodifiableSet(hubs);
+    }
+
     public UserAlias findByName(String name) {
         return usersByName.get(name);
     }
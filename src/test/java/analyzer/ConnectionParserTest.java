@@ -0,0 +1,123 @@
+package analyzer;
+
+import config.GAConfig;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import user.RecordBuildingException;
+import user.UserRecords;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionParserTest {
+
+    private static final int PLAYERS = 300;
+    private static final int LINES = 30000;
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSS");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GAConfig config;
+
+    @Before
+    public void writeLogs() throws IOException {
+        Random random = new Random(29);
+
+        String[] hashes = new String[PLAYERS];
+        String[][] ips = new String[PLAYERS][];
+
+        File cdHash = folder.newFile("cdhash.log");
+
+        try (PrintWriter out = new PrintWriter(cdHash, "UTF-8")) {
+            for (int player = 0; player < PLAYERS; player++) {
+                // Every 20th player shares the hash of the previous one
+                hashes[player] = player % 20 == 1 ? hashes[player - 1] : String.format("%032x", random.nextLong() & Long.MAX_VALUE);
+
+                ips[player] = new String[1 + random.nextInt(3)];
+                for (int i = 0; i < ips[player].length; i++) {
+                    // A small address space, so IPs are shared between players
+                    ips[player][i] = "10.0." + random.nextInt(4) + "." + (1 + random.nextInt(100));
+                    out.println("[2017-06-01 00:00] " + hashes[player] + " TAG p" + player + " " + ips[player][i]);
+                }
+            }
+        }
+
+        File namehack = folder.newFile("namehack.log");
+
+        try (PrintWriter out = new PrintWriter(namehack, "UTF-8")) {
+            LocalDateTime time = LocalDateTime.of(2017, 6, 2, 0, 0);
+            List<Integer> online = new ArrayList<>();
+
+            for (int line = 0; line < LINES; line++) {
+                // Several events share a timestamp, so the order within one is what is checked
+                if (random.nextInt(3) == 0) {
+                    time = time.plusSeconds(1 + random.nextInt(30));
+                }
+                String timestamp = time.format(TIMESTAMP);
+
+                int roll = random.nextInt(1000);
+
+                if (roll < 2) {
+                    // Crash, nobody leaves
+                    online.clear();
+                } else if (online.isEmpty() || (roll < 520 && online.size() < 40)) {
+                    int player = random.nextInt(PLAYERS);
+                    if (online.contains(player)) {
+                        continue;
+                    }
+                    online.add(player);
+
+                    String ip = ips[player][random.nextInt(ips[player].length)];
+                    out.println("[" + timestamp + "] NHACK Added \"p" + player + "\" on " + ip + " [" + online.size() + "].");
+                } else {
+                    int player = online.remove(random.nextInt(online.size()));
+                    out.println("[" + timestamp + "] NACK Deleted \"p" + player + "\".");
+                }
+            }
+        }
+
+        config = new GAConfig();
+        config.setLevel(2);
+        config.setCdHashFile(cdHash);
+        config.setConnectionFile(namehack);
+    }
+
+    @Test
+    public void segmentsGiveTheSequentialOutput() throws RecordBuildingException {
+        List<String> sequential = parse(1, false);
+
+        assertTrue("The generated log should produce incidents", sequential.size() > 100);
+
+        assertEquals(sequential, parse(1, true));
+        assertEquals(sequential, parse(4, true));
+    }
+
+    private List<String> parse(int threads, boolean segments) throws RecordBuildingException {
+        config.setThreads(threads);
+        config.setParallelSegments(segments);
+
+        UserRecords strongRecords = UserRecords.build(config, false, Collections.emptySet());
+        UserRecords weakRecords = UserRecords.build(config, true, Collections.emptySet());
+
+        List<String> lines = new ArrayList<>();
+        for (GhostingIncident incident : new ConnectionParser(config, strongRecords, weakRecords).parse()) {
+            lines.add(incident.toString());
+        }
+
+        return lines;
+    }
+}
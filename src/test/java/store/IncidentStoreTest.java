@@ -0,0 +1,209 @@
+package store;
+
+import analyzer.GhostingIncident;
+import analyzer.UserConnection;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IncidentStoreTest {
+
+    private static final String SETTINGS = "level=2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsWithoutIndexBlocksAreIndexedOnOpen() throws IOException {
+        File directory = folder.newFolder("store");
+
+        try (IncidentStore store = IncidentStore.open(directory)) {
+            store.append(batch(0, 10), SETTINGS);
+        }
+
+        long nameIndexLength = new File(directory, "names.idx").length();
+        long ipIndexLength = new File(directory, "ips.idx").length();
+
+        try (IncidentStore store = IncidentStore.open(directory)) {
+            store.append(batch(10, 10), SETTINGS);
+        }
+
+        // The run died after writing the records: the second name block is half written and the IP block is missing
+        truncate(new File(directory, "names.idx"), nameIndexLength + 7);
+        truncate(new File(directory, "ips.idx"), ipIndexLength);
+
+        try (IncidentStore store = IncidentStore.open(directory)) {
+            assertEquals(20, store.size());
+
+            for (int i = 0; i < 20; i++) {
+                assertEquals(Collections.singletonList(timestamp(i)), timestamps(store.history("a" + i)));
+                assertEquals(Collections.singletonList(timestamp(i)), timestamps(store.history(ip(i))));
+            }
+
+            // The shared name is in every incident, once
+            assertEquals(20, store.history("shared").size());
+        }
+    }
+
+    @Test
+    public void blocksAreCompacted() throws IOException {
+        File directory = folder.newFolder("store");
+
+        // Every run appends a small block, so they keep being merged
+        for (int run = 0; run < 100; run++) {
+            try (IncidentStore store = IncidentStore.open(directory)) {
+                assertEquals(1, store.append(batch(run, 1), SETTINGS));
+            }
+        }
+
+        try (IncidentStore store = IncidentStore.open(directory)) {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                expected.add(timestamp(i));
+                assertEquals(Collections.singletonList(timestamp(i)), timestamps(store.history("a" + i)));
+            }
+
+            assertEquals(expected, timestamps(store.history("shared")));
+        }
+
+        try (PostingIndex index = new PostingIndex(new File(directory, "names.idx"))) {
+            assertTrue(index.getBlockCount() < 8);
+            assertEquals(100, index.getIndexedRecords());
+        }
+
+        assertFalse(new File(directory, "names.idx.merge").exists());
+        assertFalse(new File(directory, "names.idx.merge.tmp").exists());
+        assertFalse(new File(directory, "names.idx.postings.tmp").exists());
+    }
+
+    @Test
+    public void blocksOfDifferentSizesAreMerged() throws IOException {
+        File directory = folder.newFolder("store");
+        Random random = new Random(30);
+
+        int total = 0;
+        for (int run = 0; run < 40; run++) {
+            // Mostly small runs with a few large ones in between, so the blocks end up in different tiers
+            int count = run % 9 == 4 ? 4000 + random.nextInt(2000) : 1 + random.nextInt(50);
+
+            try (IncidentStore store = IncidentStore.open(directory)) {
+                assertEquals(count, store.append(batch(total, count), SETTINGS));
+            }
+            total += count;
+        }
+
+        try (IncidentStore store = IncidentStore.open(directory)) {
+            assertEquals(total, store.size());
+            assertEquals(total, store.history("shared").size());
+
+            for (int i = 0; i < total; i += 97) {
+                assertEquals(Collections.singletonList(timestamp(i)), timestamps(store.history("a" + i)));
+                assertEquals(Collections.singletonList(timestamp(i)), timestamps(store.history(ip(i))));
+            }
+        }
+    }
+
+    @Test
+    public void runsWithOtherSettingsAreRefused() throws IOException {
+        File directory = folder.newFolder("store");
+
+        try (IncidentStore store = IncidentStore.open(directory)) {
+            store.append(batch(0, 10), SETTINGS);
+        }
+
+        try (IncidentStore store = IncidentStore.open(directory)) {
+            store.append(batch(10, 10), "level=0");
+            fail("A run with other settings was appended.");
+        } catch (IOException e) {
+            // Expected, nothing is appended
+        }
+
+        try (IncidentStore store = IncidentStore.open(directory)) {
+            assertEquals(10, store.size());
+        }
+    }
+
+    @Test
+    public void incidentsAtTheLastTimestampAreComparedByContent() throws IOException {
+        File directory = folder.newFolder("store");
+        String timestamp = timestamp(0);
+
+        GhostingIncident first = new GhostingIncident(new UserConnection("a", "10.0.0.1", 3), new UserConnection("b", "10.0.0.2", 3), 3, timestamp, 0.5);
+        GhostingIncident second = new GhostingIncident(new UserConnection("c", "10.0.0.3", 2), new UserConnection("d", "10.0.0.4", 2), 2, timestamp);
+        GhostingIncident third = new GhostingIncident(new UserConnection("e", "10.0.0.5", 2), new UserConnection("f", "10.0.0.6", 2), 2, timestamp);
+
+        try (IncidentStore store = IncidentStore.open(directory)) {
+            assertEquals(1, store.append(Collections.singletonList(second), SETTINGS));
+        }
+
+        // The longer log found two more incidents at the same time, one of them before the stored one
+        try (IncidentStore store = IncidentStore.open(directory)) {
+            assertEquals(2, store.append(Arrays.asList(first, second, third), SETTINGS));
+            assertEquals(0, store.append(Arrays.asList(first, second, third), SETTINGS));
+
+            assertEquals(Collections.singletonList(second.toString()), strings(store.history("c")));
+            assertEquals(Collections.singletonList(third.toString()), strings(store.history("f")));
+
+            // The confidence of a fuzzy incident is kept
+            assertEquals(Collections.singletonList(first.toString()), strings(store.history("a")));
+        }
+    }
+
+    private static List<GhostingIncident> batch(int from, int count) {
+        List<GhostingIncident> incidents = new ArrayList<>();
+
+        for (int i = from; i < from + count; i++) {
+            incidents.add(new GhostingIncident(new UserConnection("a" + i, ip(i), 2), new UserConnection("shared", "10.1.0.1", 2), 2, timestamp(i)));
+        }
+
+        return incidents;
+    }
+
+    private static String ip(int i) {
+        return "10.0." + (i / 250) + "." + (i % 250 + 1);
+    }
+
+    private static String timestamp(int i) {
+        return String.format("2017-06-02T%02d:%02d:%02d.000000", i / 3600, i / 60 % 60, i % 60);
+    }
+
+    private static List<String> timestamps(List<GhostingIncident> incidents) {
+        List<String> timestamps = new ArrayList<>();
+
+        for (GhostingIncident incident : incidents) {
+            timestamps.add(incident.getTimestamp());
+        }
+
+        return timestamps;
+    }
+
+    private static List<String> strings(List<GhostingIncident> incidents) {
+        List<String> strings = new ArrayList<>();
+
+        for (GhostingIncident incident : incidents) {
+            strings.add(incident.toString());
+        }
+
+        return strings;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package user;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentUserRecordsTest {
+
+    private static final int ROUNDS = 10;
+    private static final int WRITERS = 8;
+    private static final int RECORDS = 6000;
+
+    // The records keep overlapping and groups are merged concurrently, but the pools are large enough not to merge everything into one group
+    private static final int HASHES = 10000;
+    private static final int NAMES = 10000;
+    private static final int IPS = 10000;
+
+    @Test
+    public void concurrentWritersGiveTheSequentialGroups() throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + 1);
+
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                Random random = new Random(round);
+
+                List<String[]> records = new ArrayList<>();
+                for (int i = 0; i < RECORDS; i++) {
+                    records.add(new String[]{"h" + random.nextInt(HASHES), "n" + random.nextInt(NAMES), "ip" + random.nextInt(IPS)});
+                }
+
+                // Names beyond the pool are not in the CD hash records, connection records have no hash
+                List<String[]> connections = new ArrayList<>();
+                for (int i = 0; i < RECORDS / 4; i++) {
+                    connections.add(new String[]{null, "n" + random.nextInt(NAMES + NAMES / 10), "ip" + random.nextInt(IPS)});
+                }
+
+                for (boolean matchByIP : new boolean[]{false, true}) {
+                    UserRecords sequential = new UserRecords(matchByIP, false);
+                    for (int i = 0; i < records.size(); i++) {
+                        String[] record = records.get(i);
+                        sequential.addRecord(record[0], record[1], record[2], i);
+                    }
+
+                    ConcurrentUserRecords concurrent = new ConcurrentUserRecords(matchByIP, false);
+                    writeConcurrently(executor, records, WRITERS, (line, i) -> concurrent.addRecord(line[0], line[1], line[2], i), concurrent);
+
+                    assertEquals(groups(sequential), groups(concurrent));
+
+                    for (int i = 0; i < connections.size(); i++) {
+                        String[] connection = connections.get(i);
+                        sequential.addConnectionRecord(connection[1], connection[2], records.size() + i);
+                    }
+
+                    // The Namehack log is read by a single writer, in order
+                    writeConcurrently(executor, connections, 1, (line, i) -> {
+                        concurrent.addConnectionRecord(line[1], line[2], records.size() + i);
+
+                        // The IP is in the group as soon as the record is added
+                        UserAlias user = concurrent.findByName(line[1]);
+                        assertTrue(user == null || user.getIPs().contains(line[2]));
+                    }, concurrent);
+
+                    assertEquals(groups(sequential), groups(concurrent));
+
+                    // The export order only depends on the log positions, not on the order the writers got to them
+                    for (GroupOrder order : GroupOrder.values()) {
+                        assertEquals(ordered(sequential, order), ordered(concurrent, order));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface LineWriter {
+        void write(String[] line, int position);
+    }
+
+    // Lines are {hash, name, IP}, the hash is null for connection records
+    private static void writeConcurrently(ExecutorService executor, List<String[]> lines, int writerCount, LineWriter lineWriter,
+                                          ConcurrentUserRecords records) throws Exception {
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+
+        List<Future<?>> writers = new ArrayList<>();
+
+        for (int writer = 0; writer < writerCount; writer++) {
+            int first = writer;
+
+            writers.add(executor.submit(() -> {
+                start.await();
+
+                for (int i = first; i < lines.size(); i += writerCount) {
+                    lineWriter.write(lines.get(i), i);
+                }
+
+                return null;
+            }));
+        }
+
+        // Reads while the groups are being merged, every group found must contain what it was found by
+        Future<?> reader = executor.submit(() -> {
+            start.await();
+
+            Random random = new Random();
+            int reads = 0;
+
+            do {
+                String[] line = lines.get(random.nextInt(lines.size()));
+
+                if (line[0] != null) {
+                    UserAlias byHash = records.findByHash(line[0]);
+                    assertTrue(byHash == null || byHash.getHashes().contains(line[0]));
+                }
+
+                UserAlias byName = records.findByName(line[1]);
+                assertTrue(byName == null || byName.getAliases().contains(line[1]));
+
+                UserAlias byIP = records.findByIP(line[2]);
+                assertTrue(byIP == null || byIP.getIPs().contains(line[2]));
+
+                if (reads % 1000 == 0) {
+                    for (UserAlias user : records.getAllUserAliases()) {
+                        assertTrue(user.size() > 0);
+                    }
+                }
+
+                reads++;
+            } while (writing.get());
+
+            return null;
+        });
+
+        start.countDown();
+
+        try {
+            for (Future<?> writer : writers) {
+                writer.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            writing.set(false);
+        }
+
+        // Rethrows a failed read
+        reader.get(1, TimeUnit.MINUTES);
+    }
+
+    // Every group as sorted hashes, names and IPs, in a sorted list
+    private static List<String> groups(UserRecords records) {
+
+        List<String> groups = new ArrayList<>();
+
+        for (UserAlias user : records.getAllUserAliases()) {
+            groups.add(group(user));
+        }
+
+        Collections.sort(groups);
+
+        return groups;
+    }
+
+    private static List<String> ordered(UserRecords records, GroupOrder order) {
+
+        List<String> groups = new ArrayList<>();
+
+        for (UserAlias user : records.getOrderedUserAliases(order, 0)) {
+            groups.add(user.getFirstSeen() + " " + group(user));
+        }
+
+        return groups;
+    }
+
+    private static String group(UserAlias user) {
+        return new TreeSet<>(user.getHashes()) + " " + new TreeSet<>(user.getAliases()) + " " + new TreeSet<>(user.getIPs());
+    }
+}